@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.everit.osgi.ecm.component.ComponentContext;
+import org.everit.persistence.liquibase.datasource.ecm.LiquibaseDataSourceConstants;
+import org.everit.persistence.liquibase.datasource.ecm.internal.LiquibaseDataSourceComponent;
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.wiring.BundleCapability;
+
+/**
+ * Measures the cost of {@link LiquibaseDataSourceComponent#activate(ComponentContext)} against an
+ * embedded H2 database. The component is driven directly with stub OSGi objects, so the results
+ * contain the migration only and not the overhead of a framework.
+ *
+ * <p>
+ * The module is built only with the <code>benchmarks</code> profile and it is never installed or
+ * deployed. Build it with <code>mvn -Pbenchmarks package</code> and run it with
+ * <code>java -jar benchmarks/target/benchmarks.jar</code>.
+ */
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ActivationBenchmark {
+
+  /**
+   * An empty database that is migrated by the benchmark. A new database and a new bundle
+   * modification time is used for every invocation, so neither the changelog cache nor the
+   * fingerprint of a previous invocation is used.
+   */
+  @State(Scope.Thread)
+  public static class EmptyDatabase {
+
+    @Param({ "1", "1000" })
+    public int batchSize;
+
+    @Param({ "true", "false" })
+    public boolean canCacheLiquibaseTableInfo;
+
+    @Param({ "1", "4" })
+    public int capabilityCount;
+
+    @Param({ "10", "1000", "10000" })
+    public int changeSetCount;
+
+    private File bundleRoot;
+
+    private BundleCapability[] capabilities;
+
+    private LiquibaseDataSourceComponent component;
+
+    private JdbcDataSource dataSource;
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+      dataSource = createDataSource();
+      capabilities = createCapabilities(bundleRoot, capabilityCount);
+      component = createComponent(dataSource, capabilities, canCacheLiquibaseTableInfo, false);
+      component.setBatchSize(batchSize);
+    }
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+      bundleRoot = ChangeLogGenerator.generate(changeSetCount, capabilityCount);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() throws SQLException {
+      component.deactivate();
+      shutdown(dataSource);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws IOException {
+      ChangeLogGenerator.delete(bundleRoot);
+    }
+  }
+
+  /**
+   * A database that is migrated once before the measurement, so every activation finds it
+   * up-to-date.
+   */
+  @State(Scope.Thread)
+  public static class MigratedDatabase {
+
+    @Param({ "true", "false" })
+    public boolean canCacheLiquibaseTableInfo;
+
+    @Param({ "1", "4" })
+    public int capabilityCount;
+
+    @Param({ "10", "1000", "10000" })
+    public int changeSetCount;
+
+    @Param({ "false", "true" })
+    public boolean forceFullCheck;
+
+    private File bundleRoot;
+
+    private BundleCapability[] capabilities;
+
+    private JdbcDataSource dataSource;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      bundleRoot = ChangeLogGenerator.generate(changeSetCount, capabilityCount);
+      dataSource = createDataSource();
+      capabilities = createCapabilities(bundleRoot, capabilityCount);
+      activateAndDeactivate(createComponent(dataSource, capabilities, canCacheLiquibaseTableInfo,
+          forceFullCheck));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+      shutdown(dataSource);
+      ChangeLogGenerator.delete(bundleRoot);
+    }
+  }
+
+  private static final AtomicLong DATABASE_SEQUENCE = new AtomicLong();
+
+  private static final AtomicLong LAST_MODIFIED_SEQUENCE = new AtomicLong();
+
+  private static final String SERVICE_PID = "benchmark";
+
+  private static void activateAndDeactivate(final LiquibaseDataSourceComponent component) {
+    component.activate(OsgiStubs.componentContext(SERVICE_PID));
+    component.deactivate();
+  }
+
+  /**
+   * Activates the component on a database that is already up-to-date. The changelog cache is
+   * warm after the first invocation, like when a configuration is updated at runtime.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @Warmup(iterations = 5, time = 1)
+  @Measurement(iterations = 10, time = 1)
+  public void activateMigratedDatabase(final MigratedDatabase state) {
+    activateAndDeactivate(createComponent(state.dataSource, state.capabilities,
+        state.canCacheLiquibaseTableInfo, state.forceFullCheck));
+  }
+
+  private static BundleCapability[] createCapabilities(final File bundleRoot,
+      final int capabilityCount) {
+    long lastModified = LAST_MODIFIED_SEQUENCE.incrementAndGet();
+    BundleCapability[] capabilities = new BundleCapability[capabilityCount];
+    for (int i = 0; i < capabilityCount; i++) {
+      capabilities[i] = OsgiStubs.changeLogCapability("benchmark-" + i, bundleRoot,
+          ChangeLogGenerator.resourceName(i), 1, lastModified);
+    }
+    return capabilities;
+  }
+
+  private static LiquibaseDataSourceComponent createComponent(final JdbcDataSource dataSource,
+      final BundleCapability[] capabilities, final boolean canCacheLiquibaseTableInfo,
+      final boolean forceFullCheck) {
+    LiquibaseDataSourceComponent component = new LiquibaseDataSourceComponent();
+    component.setDataSource(dataSource);
+    component.setLiquibaseChangeLogCapabilities(capabilities);
+    component.setBatchSize(LiquibaseDataSourceConstants.DEFAULT_BATCH_SIZE);
+    component.setCanCacheLiquibaseTableInfo(canCacheLiquibaseTableInfo);
+    component.setForceFullCheck(forceFullCheck);
+    component.setFingerprintTableName(LiquibaseDataSourceConstants.DEFAULT_FINGERPRINT_TABLE_NAME);
+    component.setGatedDataSourceTimeout(
+        LiquibaseDataSourceConstants.DEFAULT_GATED_DATA_SOURCE_TIMEOUT);
+    component.setLockInitialBackoff(LiquibaseDataSourceConstants.DEFAULT_LOCK_INITIAL_BACKOFF);
+    component.setLockMaxBackoff(LiquibaseDataSourceConstants.DEFAULT_LOCK_MAX_BACKOFF);
+    component.setLockProvider(LiquibaseDataSourceConstants.LOCK_PROVIDER_TABLE);
+    component.setLockWaitTimeout(LiquibaseDataSourceConstants.DEFAULT_LOCK_WAIT_TIMEOUT);
+    component.setMigrationParallelism(1);
+    component.setOnlineDdlChunkSize(LiquibaseDataSourceConstants.DEFAULT_ONLINE_DDL_CHUNK_SIZE);
+    component.setTenantParallelism(LiquibaseDataSourceConstants.DEFAULT_TENANT_PARALLELISM);
+    return component;
+  }
+
+  private static JdbcDataSource createDataSource() {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:benchmark-" + DATABASE_SEQUENCE.incrementAndGet()
+        + ";DB_CLOSE_DELAY=-1");
+    return dataSource;
+  }
+
+  private static void shutdown(final JdbcDataSource dataSource) throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("SHUTDOWN");
+    }
+  }
+
+  /**
+   * Activates the component on an empty database, so all changeSets are applied.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 3)
+  @Measurement(iterations = 10)
+  public void migrateEmptyDatabase(final EmptyDatabase state) {
+    state.component.activate(OsgiStubs.componentContext(SERVICE_PID));
+  }
+
+}
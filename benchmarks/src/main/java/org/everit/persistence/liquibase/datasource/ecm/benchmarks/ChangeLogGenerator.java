@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Generates changelog files into a temporary directory that plays the content of a bundle. Every
+ * capability gets its own directory with one changelog. The first changeSet of a changelog
+ * creates a table and the others insert one row each.
+ */
+final class ChangeLogGenerator {
+
+  private static final String CHANGELOG_DIRECTORY_PREFIX = "META-INF/liquibase/capability-";
+
+  private static final String CHANGELOG_FILE_NAME = "changelog.xml";
+
+  /**
+   * Deletes the directory recursively.
+   */
+  public static void delete(final File directory) throws IOException {
+    if (directory == null || !directory.exists()) {
+      return;
+    }
+    Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult postVisitDirectory(final Path dir, final IOException exc)
+          throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Generates the changelogs.
+   *
+   * @param changeSetCount
+   *          The number of changeSets in all changelogs together.
+   * @param capabilityCount
+   *          The number of changelogs that the changeSets are divided between.
+   * @return The directory that contains the changelogs.
+   */
+  public static File generate(final int changeSetCount, final int capabilityCount)
+      throws IOException {
+    File bundleRoot = Files.createTempDirectory("liquibase-benchmark").toFile();
+    for (int capability = 0; capability < capabilityCount; capability++) {
+      int from = changeSetCount * capability / capabilityCount;
+      int to = changeSetCount * (capability + 1) / capabilityCount;
+      File changeLogFile = new File(bundleRoot, resourceName(capability));
+      Files.createDirectories(changeLogFile.getParentFile().toPath());
+      writeChangeLog(changeLogFile, capability, to - from);
+    }
+    return bundleRoot;
+  }
+
+  /**
+   * The name of the changelog resource of a capability within the bundle.
+   */
+  public static String resourceName(final int capability) {
+    return CHANGELOG_DIRECTORY_PREFIX + capability + '/' + CHANGELOG_FILE_NAME;
+  }
+
+  private static void writeChangeLog(final File changeLogFile, final int capability,
+      final int changeSetCount) throws IOException {
+    String tableName = "BENCH_" + capability;
+    try (Writer writer = new OutputStreamWriter(Files.newOutputStream(changeLogFile.toPath()),
+        StandardCharsets.UTF_8)) {
+      writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+          + "<databaseChangeLog xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\"\n"
+          + "  xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"
+          + "  xsi:schemaLocation=\"http://www.liquibase.org/xml/ns/dbchangelog"
+          + " http://www.liquibase.org/xml/ns/dbchangelog/dbchangelog-3.4.xsd\">\n");
+      for (int i = 0; i < changeSetCount; i++) {
+        writer.write("  <changeSet id=\"" + i + "\" author=\"benchmark\">\n");
+        if (i == 0) {
+          writer.write("    <createTable tableName=\"" + tableName + "\">\n"
+              + "      <column name=\"ID\" type=\"BIGINT\">\n"
+              + "        <constraints primaryKey=\"true\" nullable=\"false\" />\n"
+              + "      </column>\n"
+              + "      <column name=\"NAME\" type=\"VARCHAR(255)\" />\n"
+              + "    </createTable>\n");
+        } else {
+          writer.write("    <insert tableName=\"" + tableName + "\">\n"
+              + "      <column name=\"ID\" valueNumeric=\"" + i + "\" />\n"
+              + "      <column name=\"NAME\" value=\"row-" + i + "\" />\n"
+              + "    </insert>\n");
+        }
+        writer.write("  </changeSet>\n");
+      }
+      writer.write("</databaseChangeLog>\n");
+    }
+  }
+
+  private ChangeLogGenerator() {
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.benchmarks;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.everit.osgi.ecm.component.ComponentContext;
+import org.everit.persistence.liquibase.datasource.ecm.internal.LiquibaseDataSourceComponent;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Minimal dynamic proxy implementations of the OSGi and ECM interfaces the component uses, so the
+ * component can be activated without a framework. Methods that the component does not call return
+ * the default value of their return type.
+ */
+final class OsgiStubs {
+
+  /**
+   * Base of the stubs that answer the known methods from a map and the rest with defaults.
+   */
+  private abstract static class StubHandler implements InvocationHandler {
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args)
+        throws Throwable {
+      String name = method.getName();
+      if ("equals".equals(name)) {
+        return proxy == args[0];
+      }
+      if ("hashCode".equals(name)) {
+        return System.identityHashCode(proxy);
+      }
+      if ("toString".equals(name)) {
+        return getClass().getSimpleName() + '@' + Integer.toHexString(
+            System.identityHashCode(proxy));
+      }
+      Object result = invokeStub(name, (args == null) ? new Object[0] : args);
+      return (result == null) ? defaultValue(method.getReturnType()) : result;
+    }
+
+    protected abstract Object invokeStub(String name, Object[] args) throws Exception;
+  }
+
+  private static final Map<Class<?>, Object> PRIMITIVE_DEFAULTS;
+
+  static {
+    Map<Class<?>, Object> defaults = new HashMap<>();
+    defaults.put(boolean.class, Boolean.FALSE);
+    defaults.put(byte.class, (byte) 0);
+    defaults.put(char.class, (char) 0);
+    defaults.put(double.class, 0d);
+    defaults.put(float.class, 0f);
+    defaults.put(int.class, 0);
+    defaults.put(long.class, 0L);
+    defaults.put(short.class, (short) 0);
+    PRIMITIVE_DEFAULTS = Collections.unmodifiableMap(defaults);
+  }
+
+  /**
+   * Creates a changelog capability of a bundle whose content is the directory.
+   *
+   * @param changeLogName
+   *          The value of the namespace attribute of the capability.
+   * @param bundleRoot
+   *          The directory that plays the root of the bundle.
+   * @param resourceName
+   *          The changelog resource within the bundle.
+   * @param bundleId
+   *          The id of the bundle.
+   * @param lastModified
+   *          The last modification time of the bundle. The changelog cache of the component is
+   *          bypassed if a new value is used.
+   */
+  public static BundleCapability changeLogCapability(final String changeLogName,
+      final File bundleRoot, final String resourceName, final long bundleId,
+      final long lastModified) {
+    final Map<String, Object> attributes = new HashMap<>();
+    attributes.put(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG, changeLogName);
+    attributes.put(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE, resourceName);
+
+    final Bundle bundle = newBundle(bundleRoot, bundleId, lastModified);
+
+    final BundleRevision revision = newProxy(BundleRevision.class, new StubHandler() {
+      @Override
+      protected Object invokeStub(final String name, final Object[] args) {
+        return "getBundle".equals(name) ? bundle : null;
+      }
+    });
+
+    return newProxy(BundleCapability.class, new StubHandler() {
+      @Override
+      protected Object invokeStub(final String name, final Object[] args) {
+        switch (name) {
+          case "getAttributes":
+            return Collections.unmodifiableMap(attributes);
+          case "getDirectives":
+            return Collections.emptyMap();
+          case "getNamespace":
+            return LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG;
+          case "getResource":
+          case "getRevision":
+            return revision;
+          default:
+            return null;
+        }
+      }
+    });
+  }
+
+  private static void collectEntries(final File directory, final String filePattern,
+      final boolean recurse, final List<URL> result) throws MalformedURLException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        if (recurse) {
+          collectEntries(file, filePattern, recurse, result);
+        }
+      } else if (matches(file.getName(), filePattern)) {
+        result.add(file.toURI().toURL());
+      }
+    }
+  }
+
+  /**
+   * Creates a component context that records nothing and returns stub service registrations.
+   */
+  @SuppressWarnings("unchecked")
+  public static ComponentContext<LiquibaseDataSourceComponent> componentContext(
+      final String servicePid) {
+    final Hashtable<String, Object> properties = new Hashtable<>();
+    properties.put(Constants.SERVICE_PID, servicePid);
+
+    final ServiceRegistration<DataSource> registration =
+        newProxy(ServiceRegistration.class, new StubHandler() {
+          @Override
+          protected Object invokeStub(final String name, final Object[] args) {
+            return null;
+          }
+        });
+
+    return newProxy(ComponentContext.class, new StubHandler() {
+      @Override
+      protected Object invokeStub(final String name, final Object[] args) {
+        switch (name) {
+          case "getProperties":
+            return properties;
+          case "registerService":
+            return registration;
+          default:
+            return null;
+        }
+      }
+    });
+  }
+
+  private static Object defaultValue(final Class<?> type) {
+    return type.isPrimitive() ? PRIMITIVE_DEFAULTS.get(type) : null;
+  }
+
+  private static List<URL> findEntries(final File bundleRoot, final String path,
+      final String filePattern, final boolean recurse) throws MalformedURLException {
+    List<URL> result = new ArrayList<>();
+    File directory = new File(bundleRoot, path);
+    collectEntries(directory, filePattern, recurse, result);
+    return result;
+  }
+
+  private static boolean matches(final String fileName, final String filePattern) {
+    if (filePattern == null || "*".equals(filePattern)) {
+      return true;
+    }
+    int starIndex = filePattern.indexOf('*');
+    if (starIndex < 0) {
+      return fileName.equals(filePattern);
+    }
+    return fileName.startsWith(filePattern.substring(0, starIndex))
+        && fileName.endsWith(filePattern.substring(starIndex + 1));
+  }
+
+  private static Bundle newBundle(final File bundleRoot, final long bundleId,
+      final long lastModified) {
+    final ClassLoader classLoader;
+    try {
+      classLoader = new URLClassLoader(new URL[] { bundleRoot.toURI().toURL() },
+          OsgiStubs.class.getClassLoader());
+    } catch (MalformedURLException e) {
+      throw new IllegalStateException(e);
+    }
+
+    final BundleWiring wiring = newProxy(BundleWiring.class, new StubHandler() {
+      @Override
+      protected Object invokeStub(final String name, final Object[] args) {
+        return "getClassLoader".equals(name) ? classLoader : null;
+      }
+    });
+
+    return newProxy(Bundle.class, new StubHandler() {
+      @Override
+      protected Object invokeStub(final String name, final Object[] args) throws Exception {
+        switch (name) {
+          case "adapt":
+            return BundleWiring.class.equals(args[0]) ? wiring : null;
+          case "findEntries":
+            List<URL> entries = findEntries(bundleRoot, (String) args[0], (String) args[1],
+                (Boolean) args[2]);
+            return entries.isEmpty() ? null : Collections.enumeration(entries);
+          case "getBundleId":
+            return bundleId;
+          case "getEntry":
+          case "getResource":
+            File file = new File(bundleRoot, (String) args[0]);
+            return file.isFile() ? file.toURI().toURL() : null;
+          case "getLastModified":
+            return lastModified;
+          case "getResources":
+            return classLoader.getResources(stripLeadingSlash((String) args[0]));
+          case "getState":
+            return Bundle.ACTIVE;
+          case "getSymbolicName":
+            return "org.everit.persistence.liquibase.datasource.ecm.benchmarks.changelogs";
+          case "getVersion":
+            return Version.emptyVersion;
+          case "loadClass":
+            return classLoader.loadClass((String) args[0]);
+          default:
+            return null;
+        }
+      }
+    });
+  }
+
+  private static <T> T newProxy(final Class<T> type, final InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(OsgiStubs.class.getClassLoader(),
+        new Class<?>[] { type }, handler));
+  }
+
+  private static String stripLeadingSlash(final String name) {
+    return name.startsWith("/") ? name.substring(1) : name;
+  }
+
+  private OsgiStubs() {
+  }
+}
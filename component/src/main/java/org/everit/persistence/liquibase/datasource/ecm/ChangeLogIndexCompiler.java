@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.everit.persistence.liquibase.datasource.ecm.internal.ChangeLogIndex;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.exception.LiquibaseException;
+import liquibase.logging.LogFactory;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.FileSystemResourceAccessor;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Writes the {@link ChangeLogIndex} of changelogs at build time, so the component does not have
+ * to parse them to find out whether a changeSet is pending. It is meant to run in the
+ * process-classes phase of a bundle that provides <code>liquibase.changelog</code> capabilities,
+ * e.g. with the java goal of the exec-maven-plugin, before the maven-bundle-plugin packages the
+ * classes directory. The README of the project shows the configuration of the plugin.
+ *
+ * <p>
+ * The first argument is the classes directory, the further arguments are the resource names of
+ * the changelogs as they appear in the capabilities. The index of each changelog is written next
+ * to it. The changelog should be in a directory of its own, as every changelog, SQL and CSV file
+ * in the directory of the changelog and below is part of the hash that tells whether the index is
+ * stale.
+ *
+ * <p>
+ * Changelogs that contain <code>${...}</code> parameters are not indexed, as the values of the
+ * parameters, and so the checkSums of the changeSets, depend on the database the changelog is
+ * applied on. The component parses these changelogs at runtime.
+ */
+public final class ChangeLogIndexCompiler {
+
+  /**
+   * Writes the index of a changelog. If the changelog uses parameters, no index is written and
+   * the index of a previous build is deleted.
+   *
+   * @param classesDirectory
+   *          The directory that is packaged into the bundle.
+   * @param resourceName
+   *          The name of the changelog resource as it appears in the capability.
+   * @return The number of indexed changeSets or <code>-1</code> if the changelog uses
+   *         parameters.
+   */
+  static int compile(final Path classesDirectory, final String resourceName)
+      throws IOException, LiquibaseException {
+    SortedMap<String, URL> files = findChangeLogFiles(classesDirectory, resourceName);
+    Path index = resolve(classesDirectory, resourceName + ChangeLogIndex.INDEX_SUFFIX);
+    if (ChangeLogIndex.containsParameter(files)) {
+      Files.deleteIfExists(index);
+      return -1;
+    }
+
+    ResourceAccessor resourceAccessor =
+        new FileSystemResourceAccessor(classesDirectory.toString());
+    DatabaseChangeLog changeLog = ChangeLogParserFactory.getInstance()
+        .getParser(resourceName, resourceAccessor)
+        .parse(resourceName, new ChangeLogParameters(), resourceAccessor);
+
+    String sourceHash = ChangeLogIndex.computeSourceHash(files);
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(index))) {
+      ChangeLogIndex.write(changeLog, sourceHash, out);
+    }
+    return changeLog.getChangeSets().size();
+  }
+
+  /**
+   * Finds the changelog, SQL and CSV files in the directory of the changelog and below with the
+   * same paths that the bundle will return for them.
+   */
+  private static SortedMap<String, URL> findChangeLogFiles(final Path classesDirectory,
+      final String resourceName) throws IOException {
+    int lastSlashIndex = resourceName.lastIndexOf('/');
+    String directory = (lastSlashIndex < 0) ? "" : resourceName.substring(0, lastSlashIndex + 1);
+
+    final SortedMap<String, URL> files = new TreeMap<>();
+    Files.walkFileTree(resolve(classesDirectory, directory), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+          throws IOException {
+        String path = '/' + classesDirectory.relativize(file).toString()
+            .replace(File.separatorChar, '/');
+        if (ChangeLogIndex.isSourceFile(path)) {
+          files.put(path, file.toUri().toURL());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return files;
+  }
+
+  /**
+   * Writes the indexes of changelogs.
+   *
+   * @param args
+   *          The classes directory and the resource names of the changelogs.
+   */
+  public static void main(final String[] args) throws IOException, LiquibaseException {
+    if (args.length < 2) {
+      throw new IllegalArgumentException("Usage: " + ChangeLogIndexCompiler.class.getName()
+          + " <classesDirectory> <changeLogResource>...");
+    }
+    Path classesDirectory = Paths.get(args[0]).toAbsolutePath();
+    for (int i = 1; i < args.length; i++) {
+      int changeSetCount = compile(classesDirectory, args[i]);
+      if (changeSetCount < 0) {
+        LogFactory.getLogger().info("Changelog index skipped for " + args[i]
+            + " as it uses changelog parameters");
+      } else {
+        LogFactory.getLogger().info("Changelog index written for " + args[i] + " with "
+            + changeSetCount + " changeSets");
+      }
+    }
+  }
+
+  private static Path resolve(final Path classesDirectory, final String resourceName) {
+    return classesDirectory.resolve(
+        resourceName.startsWith("/") ? resourceName.substring(1) : resourceName);
+  }
+
+  private ChangeLogIndexCompiler() {
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm;
+
+/**
+ * Information about the execution of a changeSet during a migration.
+ */
+public class ChangeSetExecution {
+
+  private final String author;
+
+  private final String capabilityName;
+
+  private final long durationMillis;
+
+  private final String filePath;
+
+  private final String id;
+
+  private final String outcome;
+
+  private final int statementCount;
+
+  /**
+   * Constructor.
+   *
+   * @param capabilityName
+   *          The name of the liquibase.changelog capability that contains the changeSet.
+   * @param filePath
+   *          The path of the changelog file that contains the changeSet.
+   * @param id
+   *          The id of the changeSet.
+   * @param author
+   *          The author of the changeSet.
+   * @param durationMillis
+   *          The wall time of the execution in milliseconds.
+   * @param outcome
+   *          The name of the Liquibase execution type (e.g.: EXECUTED) or FAILED if the execution
+   *          threw an exception.
+   * @param statementCount
+   *          The number of SQL statements that the changes of the changeSet executed.
+   */
+  public ChangeSetExecution(final String capabilityName, final String filePath, final String id,
+      final String author, final long durationMillis, final String outcome,
+      final int statementCount) {
+    this.capabilityName = capabilityName;
+    this.filePath = filePath;
+    this.id = id;
+    this.author = author;
+    this.durationMillis = durationMillis;
+    this.outcome = outcome;
+    this.statementCount = statementCount;
+  }
+
+  public String getAuthor() {
+    return author;
+  }
+
+  public String getCapabilityName() {
+    return capabilityName;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  public String getFilePath() {
+    return filePath;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getOutcome() {
+    return outcome;
+  }
+
+  public int getStatementCount() {
+    return statementCount;
+  }
+
+  @Override
+  public String toString() {
+    return capabilityName + ":" + filePath + "::" + id + "::" + author + " (" + outcome + ", "
+        + durationMillis + " ms, " + statementCount + " statements)";
+  }
+}
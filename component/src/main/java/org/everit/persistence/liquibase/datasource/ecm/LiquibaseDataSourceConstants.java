@@ -20,6 +20,56 @@ package org.everit.persistence.liquibase.datasource.ecm;
  */
 public final class LiquibaseDataSourceConstants {
 
+  /**
+   * Possible values of the {@link LiquibaseDataSourceConstants#SERVICE_PROP_MIGRATION_STATE}
+   * service property. The gated DataSource is registered in {@link #PENDING} state that changes
+   * to {@link #RUNNING} when the migration thread starts. After the referenced changelogs
+   * changed, the registered services are {@link #PENDING} while the migration waits for the
+   * migration thread and {@link #RUNNING} while the changelogs are applied.
+   */
+  public static final class MigrationState {
+    public static final String COMPLETED = "COMPLETED";
+
+    public static final String FAILED = "FAILED";
+
+    public static final String PENDING = "PENDING";
+
+    public static final String RUNNING = "RUNNING";
+
+    private MigrationState() {
+    }
+  }
+
+  /**
+   * Names of the measured phases of a migration in {@link MigrationMetrics#getPhaseDurations()}.
+   */
+  public static final class MigrationPhase {
+    public static final String CHANGELOG_INDEX_LOADING = "changeLogIndexLoading";
+
+    public static final String CHANGELOG_PARSING = "changeLogParsing";
+
+    public static final String DATABASE_DETECTION = "databaseDetection";
+
+    public static final String LOCK_ACQUISITION = "lockAcquisition";
+
+    public static final String PENDING_CHECK = "pendingCheck";
+
+    public static final String TOTAL = "total";
+
+    public static final String UPDATE = "update";
+
+    /**
+     * Prefix of the phases that measure the update of one capability. The name of the capability
+     * is appended.
+     */
+    public static final String UPDATE_CAPABILITY_PREFIX = "update.";
+
+    public static final String WARM_UP = "warmUp";
+
+    private MigrationPhase() {
+    }
+  }
+
   /**
    * Name of references.
    */
@@ -28,16 +78,26 @@ public final class LiquibaseDataSourceConstants {
 
     public static final String LIQUIBASE_CHANGELOG = "liquibaseChangeLog";
 
+    public static final String METRICS_LISTENER = "metricsListener";
+
     private ReferenceConstants() {
     }
   }
 
+  public static final String ATTR_ASYNC_MIGRATION = "asyncMigration";
+
   public static final String ATTR_AUTO_COMMIT = "autoCommit";
 
+  public static final String ATTR_BATCH_SIZE = "batchSize";
+
   public static final String ATTR_CAN_CACHE_LIQUIBASE_TABLE_INFO = "canCacheLiquibaseTableInfo";
 
+  public static final String ATTR_CHANGE_SET_TIMEOUT = "changeSetTimeout";
+
   public static final String ATTR_CONTEXTS = "contexts";
 
+  public static final String ATTR_COORDINATED_MIGRATION = "coordinatedMigration";
+
   public static final String ATTR_CURRENT_DATETIME_FUNCTION = "currentDateTimeFunction";
 
   public static final String ATTR_DATABASE_CHANGE_LOG_LOCK_TABLE_NAME =
@@ -51,6 +111,18 @@ public final class LiquibaseDataSourceConstants {
 
   public static final String ATTR_DEFAULT_SCHEMA_NAME = "defaultSchemaName";
 
+  public static final String ATTR_FINGERPRINT_TABLE_NAME = "fingerprintTableName";
+
+  public static final String ATTR_FORCE_FULL_CHECK = "forceFullCheck";
+
+  public static final String ATTR_GATED_DATA_SOURCE = "gatedDataSource";
+
+  public static final String ATTR_GATED_DATA_SOURCE_TIMEOUT = "gatedDataSourceTimeout";
+
+  public static final String ATTR_HISTORY_FILE = "historyFile";
+
+  public static final String ATTR_HISTORY_MAX_FILE_SIZE = "historyMaxFileSize";
+
   public static final String ATTR_LABEL_EXPRESSION = "labelExpression";
 
   public static final String ATTR_LIQUIBASE_CATALOG_NAME = "liquibaseCatalogName";
@@ -62,14 +134,141 @@ public final class LiquibaseDataSourceConstants {
 
   public static final String ATTR_LIQUIBASE_TABLE_SPACE_NAME = "liquibaseTableSpaceName";
 
+  public static final String ATTR_LOAD_DATA_CHUNK_SIZE = "loadDataChunkSize";
+
+  public static final String ATTR_LOCK_FOLLOWER_MODE = "lockFollowerMode";
+
+  public static final String ATTR_LOCK_INITIAL_BACKOFF = "lockInitialBackoff";
+
+  public static final String ATTR_LOCK_MAX_BACKOFF = "lockMaxBackoff";
+
+  public static final String ATTR_LOCK_PROVIDER = "lockProvider";
+
+  public static final String ATTR_LOCK_WAIT_TIMEOUT = "lockWaitTimeout";
+
+  public static final String ATTR_METRICS_LISTENER_TARGET =
+      ReferenceConstants.METRICS_LISTENER + ".target";
+
+  public static final String ATTR_MIGRATION_PARALLELISM = "migrationParallelism";
+
+  public static final String ATTR_MIGRATION_TIMEOUT = "migrationTimeout";
+
+  public static final String ATTR_MODE = "mode";
+
   public static final String ATTR_OBJECT_QUOTING_STRATEGY = "objectQuotingStrategy";
 
+  public static final String ATTR_ONLINE_DDL_CHUNK_SIZE = "onlineDdlChunkSize";
+
+  public static final String ATTR_ONLINE_DDL_THROTTLE = "onlineDdlThrottle";
+
   public static final String ATTR_OUTPUT_DEFAULT_CATALOG = "outputDefaultCatalog";
 
   public static final String ATTR_OUTPUT_DEFAULT_SCHEMA = "outputDefaultSchema";
 
+  public static final String ATTR_STATEMENT_TIMEOUT = "statementTimeout";
+
   public static final String ATTR_TAG = "tag";
 
+  public static final String ATTR_TENANT_PARALLELISM = "tenantParallelism";
+
+  public static final String ATTR_TENANT_SCHEMA_NAMES = "tenantSchemaNames";
+
+  public static final String ATTR_TENANT_SCHEMA_QUERY = "tenantSchemaQuery";
+
+  public static final String ATTR_UPDATE_SQL_FILE = "updateSqlFile";
+
+  public static final String ATTR_WARM_UP_CONNECTIONS = "warmUpConnections";
+
+  public static final String ATTR_WARM_UP_QUERIES = "warmUpQueries";
+
+  /**
+   * Attribute of the liquibase.changelog capability. If true, the changelog does not depend on
+   * any other changelog, so it can be applied at the same time as the others.
+   */
+  public static final String CAPABILITY_ATTR_INDEPENDENT = "independent";
+
+  /**
+   * Attribute of the liquibase.changelog capability that selects the changeSets whose indexes and
+   * column backfills are applied with online DDL (see {@link #ONLINE_DDL_ALL} and
+   * {@link #ONLINE_DDL_NON_TRANSACTIONAL}).
+   */
+  public static final String CAPABILITY_ATTR_ONLINE_DDL = "onlineDdl";
+
+  public static final int DEFAULT_BATCH_SIZE = 1;
+
+  public static final String DEFAULT_FINGERPRINT_TABLE_NAME = "DATABASECHANGELOGFINGERPRINT";
+
+  public static final long DEFAULT_GATED_DATA_SOURCE_TIMEOUT = 300000;
+
+  public static final long DEFAULT_HISTORY_MAX_FILE_SIZE = 10485760;
+
+  public static final long DEFAULT_LOCK_INITIAL_BACKOFF = 100;
+
+  public static final long DEFAULT_LOCK_MAX_BACKOFF = 10000;
+
+  public static final long DEFAULT_LOCK_WAIT_TIMEOUT = 300000;
+
+  public static final int DEFAULT_ONLINE_DDL_CHUNK_SIZE = 10000;
+
+  public static final int DEFAULT_TENANT_PARALLELISM = 4;
+
+  /**
+   * Framework property that specifies the maximum number of parsed changelogs that are cached.
+   * Zero disables the cache.
+   */
+  public static final String FRAMEWORK_PROP_CHANGELOG_CACHE_SIZE =
+      "org.everit.persistence.liquibase.datasource.ecm.changeLogCacheSize";
+
+  public static final String LOCK_PROVIDER_ADVISORY = "advisory";
+
+  /**
+   * Advisory lock that is acquired only if the changelog lock table is not locked. It is meant
+   * for clusters where some nodes still use the changelog lock table, e.g. during a rolling
+   * upgrade.
+   */
+  public static final String LOCK_PROVIDER_ADVISORY_TABLE_AWARE = "advisoryTableAware";
+
+  public static final String LOCK_PROVIDER_TABLE = "table";
+
+  public static final String MODE_UPDATE = "update";
+
+  public static final String MODE_UPDATE_SQL = "updateSQL";
+
+  public static final String MODE_VALIDATE_ONLY = "validateOnly";
+
+  /**
+   * Value of the {@link #CAPABILITY_ATTR_ONLINE_DDL} capability attribute that applies every
+   * changeSet of the changelog with online DDL.
+   */
+  public static final String ONLINE_DDL_ALL = "true";
+
+  /**
+   * Value of the {@link #CAPABILITY_ATTR_ONLINE_DDL} capability attribute that applies only the
+   * changeSets with <code>runInTransaction="false"</code> with online DDL.
+   */
+  public static final String ONLINE_DDL_NON_TRANSACTIONAL = "nonTransactional";
+
+  public static final String SERVICE_PROP_CHANGELOG_ROWS = "liquibase.metrics.changeLogRows";
+
+  public static final String SERVICE_PROP_CHANGESETS_APPLIED =
+      "liquibase.metrics.changeSets.applied";
+
+  public static final String SERVICE_PROP_CHANGESETS_PENDING =
+      "liquibase.metrics.changeSets.pending";
+
+  public static final String SERVICE_PROP_CHANGESETS_SKIPPED =
+      "liquibase.metrics.changeSets.skipped";
+
+  /**
+   * Prefix of the service properties that contain the duration of the migration phases in
+   * milliseconds. The name of the phase is appended (see {@link MigrationPhase}).
+   */
+  public static final String SERVICE_PROP_PHASE_MILLIS_PREFIX = "liquibase.metrics.millis.";
+
+  public static final String SERVICE_PROP_MIGRATION_STATE = "liquibase.migration.state";
+
+  public static final String SERVICE_PROP_TENANT = "tenant";
+
   public static final String SERVICE_PID =
       "org.everit.persistence.liquibase.datasource.ecm.LiquibaseDataSource";
 
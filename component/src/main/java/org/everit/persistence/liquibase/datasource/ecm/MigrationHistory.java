@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Local history of the changeSet executions of migration runs. Every execution is appended as one
+ * JSON line to the history file. If the file would grow over the maximum size, it is renamed by
+ * appending <code>.1</code> to its name and a new file is started, so at most two files are kept.
+ * The records of one migration run are always written to the same file, so a run whose records
+ * are larger than the maximum size on their own makes the file exceed it.
+ */
+public class MigrationHistory {
+
+  private static final Object APPEND_LOCK = new Object();
+
+  private static final String BACKUP_FILE_SUFFIX = ".1";
+
+  private static final String FIELD_AUTHOR = "author";
+
+  private static final String FIELD_CAPABILITY = "capability";
+
+  private static final String FIELD_FILE = "file";
+
+  private static final String FIELD_ID = "id";
+
+  private static final String FIELD_MILLIS = "millis";
+
+  private static final String FIELD_OUTCOME = "outcome";
+
+  private static final String FIELD_SERVICE_PID = "servicePid";
+
+  private static final String FIELD_STATEMENTS = "statements";
+
+  private static final String FIELD_SUCCESSFUL = "successful";
+
+  private static final String FIELD_TIME = "time";
+
+  private static final int HEX_RADIX = 16;
+
+  private static final int MAX_INITIAL_QUEUE_CAPACITY = 64;
+
+  private static final int UNICODE_ESCAPE_LENGTH = 4;
+
+  private static void appendField(final StringBuilder sb, final String name,
+      final boolean value) {
+    appendString(sb.append(','), name);
+    sb.append(':').append(value);
+  }
+
+  private static void appendField(final StringBuilder sb, final String name, final long value) {
+    appendString(sb.append(','), name);
+    sb.append(':').append(value);
+  }
+
+  private static void appendField(final StringBuilder sb, final String name, final String value) {
+    appendString(sb.append(','), name);
+    sb.append(':');
+    if (value == null) {
+      sb.append("null");
+    } else {
+      appendString(sb, value);
+    }
+  }
+
+  private static void appendString(final StringBuilder sb, final String value) {
+    sb.append('"');
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < ' ') {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+
+  /**
+   * Parses a line that was written by {@link #append(MigrationMetrics)}.
+   *
+   * @return The fields of the line or <code>null</code> if the line is not a complete record,
+   *         e.g. the process stopped while it was written.
+   */
+  private static Map<String, String> parseLine(final String line) {
+    Map<String, String> fields = new HashMap<>();
+    int[] position = { skipWhitespace(line, 0) };
+    if (position[0] >= line.length() || line.charAt(position[0]) != '{') {
+      return null;
+    }
+    position[0]++;
+    while (true) {
+      position[0] = skipWhitespace(line, position[0]);
+      if (position[0] >= line.length() || line.charAt(position[0]) != '"') {
+        return null;
+      }
+      String name = parseString(line, position);
+      position[0] = skipWhitespace(line, position[0]);
+      if (name == null || position[0] >= line.length() || line.charAt(position[0]) != ':') {
+        return null;
+      }
+      position[0] = skipWhitespace(line, position[0] + 1);
+      if (position[0] >= line.length()) {
+        return null;
+      }
+
+      String value;
+      if (line.charAt(position[0]) == '"') {
+        value = parseString(line, position);
+        if (value == null) {
+          return null;
+        }
+      } else {
+        int start = position[0];
+        while (position[0] < line.length() && line.charAt(position[0]) != ','
+            && line.charAt(position[0]) != '}') {
+          position[0]++;
+        }
+        value = line.substring(start, position[0]).trim();
+        if ("null".equals(value)) {
+          value = null;
+        }
+      }
+      fields.put(name, value);
+
+      position[0] = skipWhitespace(line, position[0]);
+      if (position[0] >= line.length()) {
+        return null;
+      }
+      char separator = line.charAt(position[0]++);
+      if (separator == '}') {
+        return fields;
+      }
+      if (separator != ',') {
+        return null;
+      }
+    }
+  }
+
+  private static long parseLong(final String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Parses a quoted string starting at the position and moves the position after the closing
+   * quote.
+   *
+   * @return The unescaped string or <code>null</code> if the string is not terminated.
+   */
+  private static String parseString(final String line, final int[] position) {
+    StringBuilder sb = new StringBuilder();
+    int i = position[0] + 1;
+    while (i < line.length()) {
+      char c = line.charAt(i++);
+      if (c == '"') {
+        position[0] = i;
+        return sb.toString();
+      }
+      if (c != '\\') {
+        sb.append(c);
+      } else if (i < line.length()) {
+        char escaped = line.charAt(i++);
+        switch (escaped) {
+          case 'b':
+            sb.append('\b');
+            break;
+          case 'f':
+            sb.append('\f');
+            break;
+          case 'n':
+            sb.append('\n');
+            break;
+          case 'r':
+            sb.append('\r');
+            break;
+          case 't':
+            sb.append('\t');
+            break;
+          case 'u':
+            if (i + UNICODE_ESCAPE_LENGTH > line.length()) {
+              return null;
+            }
+            try {
+              sb.append((char) Integer.parseInt(line.substring(i, i + UNICODE_ESCAPE_LENGTH),
+                  HEX_RADIX));
+            } catch (NumberFormatException e) {
+              return null;
+            }
+            i += UNICODE_ESCAPE_LENGTH;
+            break;
+          default:
+            sb.append(escaped);
+            break;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static int skipWhitespace(final String line, final int position) {
+    int i = position;
+    while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private final Path backupFile;
+
+  private final Path historyFile;
+
+  private final long maxFileSize;
+
+  /**
+   * Constructor.
+   *
+   * @param historyFile
+   *          The path of the history file.
+   * @param maxFileSize
+   *          The size in bytes that the history file should not exceed. The file is rolled over
+   *          when the records of the next run would not fit anymore. The records of a single run
+   *          are never split, so they exceed the size if they are larger on their own.
+   */
+  public MigrationHistory(final String historyFile, final long maxFileSize) {
+    this.historyFile = Paths.get(historyFile);
+    this.backupFile = Paths.get(historyFile + BACKUP_FILE_SUFFIX);
+    this.maxFileSize = maxFileSize;
+  }
+
+  /**
+   * Appends the changeSet executions of a migration run to the history file. Runs that did not
+   * execute any changeSet are not recorded.
+   *
+   * @param metrics
+   *          The metrics of the finished migration run.
+   * @throws IOException
+   *           if the history file could not be written.
+   */
+  public void append(final MigrationMetrics metrics) throws IOException {
+    List<ChangeSetExecution> executions = metrics.getChangeSetExecutions();
+    if (executions.isEmpty()) {
+      return;
+    }
+
+    long time = System.currentTimeMillis();
+    StringBuilder sb = new StringBuilder();
+    for (ChangeSetExecution execution : executions) {
+      sb.append('{');
+      appendString(sb, FIELD_TIME);
+      sb.append(':').append(time);
+      appendField(sb, FIELD_SERVICE_PID, metrics.getServicePid());
+      appendField(sb, FIELD_SUCCESSFUL, metrics.isSuccessful());
+      appendField(sb, FIELD_CAPABILITY, execution.getCapabilityName());
+      appendField(sb, FIELD_FILE, execution.getFilePath());
+      appendField(sb, FIELD_ID, execution.getId());
+      appendField(sb, FIELD_AUTHOR, execution.getAuthor());
+      appendField(sb, FIELD_MILLIS, execution.getDurationMillis());
+      appendField(sb, FIELD_STATEMENTS, execution.getStatementCount());
+      appendField(sb, FIELD_OUTCOME, execution.getOutcome());
+      sb.append("}\n");
+    }
+    byte[] records = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+    synchronized (APPEND_LOCK) {
+      Path parent = historyFile.toAbsolutePath().getParent();
+      if (parent != null) {
+        Files.createDirectories(parent);
+      }
+      if (Files.exists(historyFile) && Files.size(historyFile) > 0
+          && Files.size(historyFile) + records.length > maxFileSize) {
+        Files.move(historyFile, backupFile, StandardCopyOption.REPLACE_EXISTING);
+      }
+      Files.write(historyFile, records, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+  }
+
+  /**
+   * Returns the slowest changeSet executions that are available in the history files.
+   *
+   * @param limit
+   *          The maximum number of returned executions. Must not be negative.
+   * @return The executions ordered by their duration descending.
+   * @throws IOException
+   *           if the history files could not be read.
+   * @throws IllegalArgumentException
+   *           if the limit is negative.
+   */
+  public List<ChangeSetExecution> findSlowestChangeSets(final int limit) throws IOException {
+    if (limit < 0) {
+      throw new IllegalArgumentException("Limit must not be negative: " + limit);
+    }
+    if (limit == 0) {
+      return Collections.emptyList();
+    }
+
+    Comparator<ChangeSetExecution> durationComparator = new Comparator<ChangeSetExecution>() {
+      @Override
+      public int compare(final ChangeSetExecution o1, final ChangeSetExecution o2) {
+        return Long.compare(o1.getDurationMillis(), o2.getDurationMillis());
+      }
+    };
+    PriorityQueue<ChangeSetExecution> slowest = new PriorityQueue<>(
+        Math.min(limit, MAX_INITIAL_QUEUE_CAPACITY) + 1, durationComparator);
+
+    synchronized (APPEND_LOCK) {
+      for (Path file : new Path[] { backupFile, historyFile }) {
+        if (!Files.exists(file)) {
+          continue;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+          String line = reader.readLine();
+          while (line != null) {
+            ChangeSetExecution execution = toChangeSetExecution(parseLine(line));
+            if (execution != null) {
+              slowest.offer(execution);
+              if (slowest.size() > limit) {
+                slowest.poll();
+              }
+            }
+            line = reader.readLine();
+          }
+        }
+      }
+    }
+
+    List<ChangeSetExecution> result = new ArrayList<>(slowest);
+    Collections.sort(result, Collections.reverseOrder(durationComparator));
+    return result;
+  }
+
+  private ChangeSetExecution toChangeSetExecution(final Map<String, String> fields) {
+    if (fields == null || !fields.containsKey(FIELD_MILLIS)) {
+      return null;
+    }
+    return new ChangeSetExecution(fields.get(FIELD_CAPABILITY), fields.get(FIELD_FILE),
+        fields.get(FIELD_ID), fields.get(FIELD_AUTHOR), parseLong(fields.get(FIELD_MILLIS)),
+        fields.get(FIELD_OUTCOME), (int) parseLong(fields.get(FIELD_STATEMENTS)));
+  }
+}
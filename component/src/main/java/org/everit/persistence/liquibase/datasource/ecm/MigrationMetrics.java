@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timing and throughput information of one migration run of a LiquibaseDataSource component.
+ */
+public class MigrationMetrics {
+
+  private final int appliedChangeSetCount;
+
+  private final List<ChangeSetExecution> changeSetExecutions;
+
+  private final int changeLogRowCount;
+
+  private final int pendingChangeSetCount;
+
+  private final Map<String, Long> phaseDurations;
+
+  private final String servicePid;
+
+  private final int skippedChangeSetCount;
+
+  private final boolean successful;
+
+  /**
+   * Constructor.
+   *
+   * @param servicePid
+   *          The PID of the component configuration.
+   * @param successful
+   *          Whether the migration finished without an error.
+   * @param phaseDurations
+   *          The wall time of each phase in milliseconds. The keys are the constants of
+   *          {@link LiquibaseDataSourceConstants.MigrationPhase}. If a phase runs on multiple
+   *          connections at the same time, the time while any of them runs it is counted.
+   * @param changeSetExecutions
+   *          The changeSets that Liquibase executed.
+   * @param appliedChangeSetCount
+   *          The number of changeSets that were executed successfully.
+   * @param skippedChangeSetCount
+   *          The number of changeSets that did not have to be executed.
+   * @param changeLogRowCount
+   *          The number of rows in the database changelog table after the migration or -1 if
+   *          unknown. The rows of the changelog tables of the tenant schemas are summed.
+   * @param pendingChangeSetCount
+   *          The number of changeSets that were pending before the migration or -1 if it was not
+   *          checked.
+   */
+  public MigrationMetrics(final String servicePid, final boolean successful,
+      final Map<String, Long> phaseDurations, final List<ChangeSetExecution> changeSetExecutions,
+      final int appliedChangeSetCount, final int skippedChangeSetCount,
+      final int changeLogRowCount, final int pendingChangeSetCount) {
+    this.servicePid = servicePid;
+    this.successful = successful;
+    this.phaseDurations = Collections.unmodifiableMap(phaseDurations);
+    this.changeSetExecutions = Collections.unmodifiableList(changeSetExecutions);
+    this.appliedChangeSetCount = appliedChangeSetCount;
+    this.skippedChangeSetCount = skippedChangeSetCount;
+    this.changeLogRowCount = changeLogRowCount;
+    this.pendingChangeSetCount = pendingChangeSetCount;
+  }
+
+  public int getAppliedChangeSetCount() {
+    return appliedChangeSetCount;
+  }
+
+  public List<ChangeSetExecution> getChangeSetExecutions() {
+    return changeSetExecutions;
+  }
+
+  public int getChangeLogRowCount() {
+    return changeLogRowCount;
+  }
+
+  public int getPendingChangeSetCount() {
+    return pendingChangeSetCount;
+  }
+
+  public Map<String, Long> getPhaseDurations() {
+    return phaseDurations;
+  }
+
+  public String getServicePid() {
+    return servicePid;
+  }
+
+  public int getSkippedChangeSetCount() {
+    return skippedChangeSetCount;
+  }
+
+  public boolean isSuccessful() {
+    return successful;
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm;
+
+/**
+ * OSGi service interface that is notified by the LiquibaseDataSource components after each
+ * migration run.
+ */
+public interface MigrationMetricsListener {
+
+  /**
+   * Called when a migration run finished, either successfully or with an error. The method is
+   * called on the thread of the migration so it should return quickly.
+   *
+   * @param metrics
+   *          The collected metrics of the migration run.
+   */
+  void migrationFinished(MigrationMetrics metrics);
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LockException;
+
+/**
+ * Lock provider that uses the session level advisory locks of the database. Acquiring and
+ * releasing the lock takes one round trip each and the database drops the lock automatically if
+ * the connection is closed, so no stale lock remains if a node dies during the migration. The
+ * nodes that use the changelog lock table do not see the advisory locks, so all nodes must be
+ * configured with the same provider.
+ *
+ * <p>
+ * If the changelog lock table is respected, the table is queried too whenever the advisory lock
+ * is acquired and the advisory lock is given back while the table is locked. That lets nodes that
+ * still use the table finish their migration, but a stale lock in the table blocks the advisory
+ * lock as well until it is released by hand.
+ */
+class AdvisoryMigrationLockProvider implements MigrationLockProvider {
+
+  private static final String MYSQL_LOCK_NAME_PREFIX = "liquibase_";
+
+  private static final String SHORT_NAME_MARIADB = "mariadb";
+
+  private static final String SHORT_NAME_MYSQL = "mysql";
+
+  private static final String SHORT_NAME_POSTGRESQL = "postgresql";
+
+  /**
+   * Whether advisory locks are available on the database.
+   */
+  static boolean supports(final Database database) {
+    String shortName = database.getShortName();
+    return SHORT_NAME_POSTGRESQL.equals(shortName) || SHORT_NAME_MYSQL.equals(shortName)
+        || SHORT_NAME_MARIADB.equals(shortName);
+  }
+
+  /**
+   * The changelog lock table or <code>null</code> if it is not respected.
+   */
+  private final TableMigrationLockProvider changeLogLockTable;
+
+  private final Connection connection;
+
+  private final String lockName;
+
+  private final long lockKey;
+
+  private final boolean postgres;
+
+  /**
+   * Constructor.
+   *
+   * @param database
+   *          The database whose connection holds the lock.
+   * @param scope
+   *          The name of the locked resource. Migrations with the same scope exclude each other.
+   * @param respectChangeLogLockTable
+   *          Whether the lock is acquired only if the changelog lock table is not locked.
+   */
+  AdvisoryMigrationLockProvider(final Database database, final String scope,
+      final boolean respectChangeLogLockTable) {
+    this.connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+    this.changeLogLockTable =
+        respectChangeLogLockTable ? new TableMigrationLockProvider(database) : null;
+    this.postgres = SHORT_NAME_POSTGRESQL.equals(database.getShortName());
+
+    byte[] hash;
+    try {
+      hash = MessageDigest.getInstance("SHA-256").digest(scope.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    long key = 0;
+    StringBuilder hexKey = new StringBuilder(MYSQL_LOCK_NAME_PREFIX);
+    for (int i = 0; i < Long.SIZE / Byte.SIZE; i++) {
+      key = (key << Byte.SIZE) | (hash[i] & 0xFF);
+      hexKey.append(String.format("%02x", hash[i]));
+    }
+    this.lockKey = key;
+    this.lockName = hexKey.toString();
+  }
+
+  @Override
+  public String describeOwner() {
+    if (changeLogLockTable == null) {
+      return "another session holding the advisory lock " + lockName;
+    }
+    return "another session holding the advisory lock " + lockName
+        + " or the changelog lock table: " + changeLogLockTable.describeOwner();
+  }
+
+  private boolean executeLockFunction(final String postgresSql, final String mysqlSql)
+      throws LockException {
+    try (PreparedStatement statement = connection.prepareStatement(postgres ? postgresSql
+        : mysqlSql)) {
+      if (postgres) {
+        statement.setLong(1, lockKey);
+      } else {
+        statement.setString(1, lockName);
+      }
+      try (ResultSet resultSet = statement.executeQuery()) {
+        return resultSet.next() && resultSet.getInt(1) == 1;
+      }
+    } catch (SQLException e) {
+      throw new LockException(e);
+    }
+  }
+
+  @Override
+  public boolean isLockedByOthers() throws LockException {
+    if (tryAcquire()) {
+      release();
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public void release() throws LockException {
+    executeLockFunction("SELECT CASE WHEN pg_advisory_unlock(?) THEN 1 ELSE 0 END",
+        "SELECT RELEASE_LOCK(?)");
+  }
+
+  @Override
+  public boolean tryAcquire() throws LockException {
+    if (!executeLockFunction("SELECT CASE WHEN pg_try_advisory_lock(?) THEN 1 ELSE 0 END",
+        "SELECT GET_LOCK(?, 0)")) {
+      return false;
+    }
+    if (changeLogLockTable != null && changeLogLockTable.isLockedByOthers()) {
+      // A node that uses the changelog lock table is migrating
+      release();
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.Connection;
+
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.executor.ExecutorService;
+
+/**
+ * Connection of a migration that uses {@link BatchingJdbcExecutor}. The collected statements are
+ * executed before the transaction is committed or the connection is closed, so the transaction
+ * boundaries of the changeSets do not change. The collected statements are dropped if the
+ * transaction is rolled back. The connection is used for every migration, as the executor
+ * counts the executed statements even if batching is disabled.
+ */
+class BatchingJdbcConnection extends JdbcConnection {
+
+  private BatchingJdbcExecutor executor;
+
+  BatchingJdbcConnection(final Connection connection) {
+    super(connection);
+  }
+
+  @Override
+  public void close() throws DatabaseException {
+    flush();
+    super.close();
+  }
+
+  @Override
+  public void commit() throws DatabaseException {
+    flush();
+    super.commit();
+  }
+
+  /**
+   * Creates the batching executor of the database and registers it in Liquibase. The insert
+   * statements are executed one by one if the batch size is 1 or less.
+   */
+  void enableBatching(final Database database, final int batchSize) {
+    executor = new BatchingJdbcExecutor(database, this, batchSize);
+    ExecutorService.getInstance().setExecutor(database, executor);
+  }
+
+  /**
+   * Executes the statements that the executor of the connection collected.
+   */
+  void flush() throws DatabaseException {
+    if (executor != null) {
+      executor.flush();
+    }
+  }
+
+  /**
+   * Returns the number of statements that the executor of the connection executed so far.
+   */
+  long getExecutedStatementCount() {
+    return (executor == null) ? 0 : executor.getExecutedStatementCount();
+  }
+
+  /**
+   * Returns the executor of the connection that has to be registered for the database before
+   * every update, as Liquibase drops the executors of all databases when the updates finish.
+   */
+  BatchingJdbcExecutor getExecutor() {
+    return executor;
+  }
+
+  @Override
+  public void rollback() throws DatabaseException {
+    if (executor != null) {
+      executor.discard();
+    }
+    super.rollback();
+  }
+
+  @Override
+  public void setAutoCommit(final boolean autoCommit) throws DatabaseException {
+    flush();
+    super.setAutoCommit(autoCommit);
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import liquibase.database.Database;
+import liquibase.database.core.OracleDatabase;
+import liquibase.exception.DatabaseException;
+import liquibase.executor.jvm.JdbcExecutor;
+import liquibase.executor.jvm.ResultSetExtractor;
+import liquibase.executor.jvm.RowMapper;
+import liquibase.logging.LogFactory;
+import liquibase.sql.visitor.SqlVisitor;
+import liquibase.statement.SqlStatement;
+import liquibase.statement.core.InsertSetStatement;
+import liquibase.statement.core.InsertStatement;
+
+/**
+ * Executor that collects the insert statements of the changeSets into JDBC batches instead of
+ * executing them one by one. The collected statements are executed when the batch is full,
+ * before any other statement, at the end of every changeSet and when the connection commits the
+ * transaction. The statements are generated the same way as {@link JdbcExecutor} generates them.
+ * The executed statements are counted for the metrics of the migration.
+ */
+class BatchingJdbcExecutor extends JdbcExecutor {
+
+  /**
+   * The trailing statement terminators that {@link JdbcExecutor} removes for Oracle.
+   */
+  private static final String ORACLE_TRAILING_SLASH = "[\\s\\r\\n]*/[\\s\\r\\n]*$";
+
+  private Statement batch;
+
+  private int batchedCount = 0;
+
+  private final int batchSize;
+
+  private final BatchingJdbcConnection connection;
+
+  private long executedStatementCount;
+
+  BatchingJdbcExecutor(final Database database, final BatchingJdbcConnection connection,
+      final int batchSize) {
+    this.connection = connection;
+    this.batchSize = batchSize;
+    setDatabase(database);
+  }
+
+  private void addBatch(final SqlStatement sql, final List<SqlVisitor> sqlVisitors)
+      throws DatabaseException {
+    try {
+      if (batch == null) {
+        batch = connection.getUnderlyingConnection().createStatement();
+      }
+      for (String statement : toSql(sql, sqlVisitors)) {
+        LogFactory.getLogger().debug("Adding to batch: " + statement);
+        batch.addBatch(statement);
+        batchedCount++;
+      }
+    } catch (SQLException e) {
+      discard();
+      throw new DatabaseException(e);
+    }
+    if (batchedCount >= batchSize) {
+      flush();
+    }
+  }
+
+  /**
+   * Drops the collected statements without executing them.
+   */
+  public void discard() {
+    if (batch != null) {
+      try {
+        batch.close();
+      } catch (SQLException e) {
+        LogFactory.getLogger().debug("Could not close batch statement", e);
+      }
+    }
+    batch = null;
+    batchedCount = 0;
+  }
+
+  @Override
+  public void execute(final SqlStatement sql, final List<SqlVisitor> sqlVisitors)
+      throws DatabaseException {
+    executedStatementCount++;
+    if (isBatchable(sql)) {
+      addBatch(sql, sqlVisitors);
+    } else {
+      flush();
+      super.execute(sql, sqlVisitors);
+    }
+  }
+
+  /**
+   * Executes the collected statements.
+   */
+  public void flush() throws DatabaseException {
+    if (batchedCount == 0) {
+      return;
+    }
+    try {
+      batch.executeBatch();
+    } catch (SQLException e) {
+      throw new DatabaseException(e);
+    } finally {
+      discard();
+    }
+  }
+
+  /**
+   * Returns the number of statements that were passed to the executor to be executed or updated,
+   * including the ones that are collected in the current batch.
+   */
+  public long getExecutedStatementCount() {
+    return executedStatementCount;
+  }
+
+  private boolean isBatchable(final SqlStatement sql) {
+    return batchSize > 1
+        && (sql instanceof InsertStatement || sql instanceof InsertSetStatement);
+  }
+
+  @Override
+  public Object query(final SqlStatement sql, final ResultSetExtractor rse,
+      final List<SqlVisitor> sqlVisitors) throws DatabaseException {
+    flush();
+    return super.query(sql, rse, sqlVisitors);
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public List query(final SqlStatement sql, final RowMapper rowMapper,
+      final List<SqlVisitor> sqlVisitors) throws DatabaseException {
+    flush();
+    return super.query(sql, rowMapper, sqlVisitors);
+  }
+
+  private List<String> toSql(final SqlStatement sql, final List<SqlVisitor> sqlVisitors)
+      throws DatabaseException {
+    List<String> result = new ArrayList<>();
+    for (String statement : applyVisitors(sql, sqlVisitors)) {
+      if (statement == null) {
+        continue;
+      }
+      if (database instanceof OracleDatabase) {
+        while (statement.matches("(?s).*" + ORACLE_TRAILING_SLASH)) {
+          statement = statement.replaceFirst(ORACLE_TRAILING_SLASH, "");
+        }
+      }
+      result.add(statement);
+    }
+    return result;
+  }
+
+  @Override
+  public int update(final SqlStatement sql, final List<SqlVisitor> sqlVisitors)
+      throws DatabaseException {
+    executedStatementCount++;
+    flush();
+    return super.update(sql, sqlVisitors);
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+
+/**
+ * A parsed changelog together with the checkSums of its changeSets that were calculated so far.
+ * As the instance is kept in the {@link ChangeLogCache}, the checkSums are reused by the following
+ * activations until the bundle of the changelog changes. Calculating a checkSum serializes every
+ * change of the changeSet, so the missing ones are calculated in parallel if there are many.
+ */
+final class CachedChangeLog {
+
+  /**
+   * Calculates the checkSums of a range of changeSets, splitting the range until it is small
+   * enough.
+   */
+  private final class CheckSumTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<ChangeSet> changeSets;
+
+    private final int from;
+
+    private final int to;
+
+    CheckSumTask(final List<ChangeSet> changeSets, final int from, final int to) {
+      this.changeSets = changeSets;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= SEQUENTIAL_THRESHOLD) {
+        for (int i = from; i < to; i++) {
+          getCheckSum(changeSets.get(i));
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new CheckSumTask(changeSets, from, middle),
+            new CheckSumTask(changeSets, middle, to));
+      }
+    }
+  }
+
+  /**
+   * The pool that the checkSums are calculated on. It is shared by all changelogs and it starts
+   * its daemon worker threads only when a calculation is submitted.
+   */
+  private static final ForkJoinPool CHECKSUM_POOL = new ForkJoinPool();
+
+  /**
+   * The number of missing checkSums below which they are calculated on the current thread.
+   */
+  private static final int SEQUENTIAL_THRESHOLD = 64;
+
+  private final DatabaseChangeLog changeLog;
+
+  private final ConcurrentMap<String, String> checkSums = new ConcurrentHashMap<>();
+
+  CachedChangeLog(final DatabaseChangeLog changeLog) {
+    this.changeLog = changeLog;
+  }
+
+  /**
+   * Calculates the checkSums of the changeSets that are not known yet. If there are many, they
+   * are calculated on the shared fork/join pool that uses all processors.
+   */
+  public void computeCheckSums(final List<ChangeSet> changeSets) {
+    List<ChangeSet> missingChangeSets = new ArrayList<>();
+    for (ChangeSet changeSet : changeSets) {
+      if (!checkSums.containsKey(changeSet.toString(false))) {
+        missingChangeSets.add(changeSet);
+      }
+    }
+
+    if (missingChangeSets.size() <= SEQUENTIAL_THRESHOLD) {
+      for (ChangeSet changeSet : missingChangeSets) {
+        getCheckSum(changeSet);
+      }
+      return;
+    }
+
+    CHECKSUM_POOL.invoke(new CheckSumTask(missingChangeSets, 0, missingChangeSets.size()));
+  }
+
+  /**
+   * Returns the checkSum of a changeSet of this changelog, calculating it if it is not known yet.
+   */
+  public String getCheckSum(final ChangeSet changeSet) {
+    String key = changeSet.toString(false);
+    String checkSum = checkSums.get(key);
+    if (checkSum == null) {
+      checkSum = changeSet.generateCheckSum().toString();
+      checkSums.putIfAbsent(key, checkSum);
+    }
+    return checkSum;
+  }
+
+  public DatabaseChangeLog getChangeLog() {
+    return changeLog;
+  }
+
+  /**
+   * Stores a checkSum that is already known, e.g. from a precompiled index.
+   */
+  public void putCheckSum(final ChangeSet changeSet, final String checkSum) {
+    checkSums.put(changeSet.toString(false), checkSum);
+  }
+}
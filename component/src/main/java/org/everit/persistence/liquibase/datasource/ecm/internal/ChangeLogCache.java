@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.everit.persistence.liquibase.datasource.ecm.LiquibaseDataSourceConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Cache of parsed changelogs and the checkSums of their changeSets that is shared by all component
+ * instances. The cached changelogs are only read to find the pending changeSets, they are never
+ * passed to Liquibase, as an update changes the state of the changelog. The cache also keeps the
+ * hash of the changelog files and whether they use parameters, as those are the same for every
+ * migration of a bundle revision. The entries are evicted in LRU order if the cache is full and
+ * all entries of a bundle are dropped when the bundle is updated, unresolved or uninstalled.
+ */
+final class ChangeLogCache {
+
+  /**
+   * Key of a cache entry. The last modification time of the bundle is part of the key so an entry
+   * is never returned for a newer revision of the bundle.
+   */
+  private static final class Key {
+
+    private final long bundleId;
+
+    private final long lastModified;
+
+    private final String parametersKey;
+
+    private final String resourceName;
+
+    Key(final Bundle bundle, final String resourceName, final String parametersKey) {
+      this.bundleId = bundle.getBundleId();
+      this.lastModified = bundle.getLastModified();
+      this.resourceName = resourceName;
+      this.parametersKey = parametersKey;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return bundleId == other.bundleId && lastModified == other.lastModified
+          && resourceName.equals(other.resourceName)
+          && parametersKey.equals(other.parametersKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(bundleId, lastModified, resourceName, parametersKey);
+    }
+  }
+
+  /**
+   * Map of the cache entries of one kind that evicts the least recently used entry if it is
+   * full.
+   *
+   * @param <V>
+   *          The type of the cached values.
+   */
+  private final class LruMap<V> extends LinkedHashMap<Key, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    LruMap() {
+      super(DEFAULT_MAX_SIZE, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Key, V> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  private static final int DEFAULT_MAX_SIZE = 64;
+
+  private static final ChangeLogCache INSTANCE = new ChangeLogCache();
+
+  public static ChangeLogCache getInstance() {
+    return INSTANCE;
+  }
+
+  private final SynchronousBundleListener bundleListener = new SynchronousBundleListener() {
+
+    @Override
+    public void bundleChanged(final BundleEvent event) {
+      int type = event.getType();
+      if (type == BundleEvent.UPDATED || type == BundleEvent.UNRESOLVED
+          || type == BundleEvent.UNINSTALLED) {
+        invalidate(event.getBundle().getBundleId());
+      }
+    }
+  };
+
+  private final LruMap<CachedChangeLog> entries = new LruMap<>();
+
+  private BundleContext listenerContext;
+
+  private int maxSize = DEFAULT_MAX_SIZE;
+
+  private final LruMap<Boolean> parameterUsages = new LruMap<>();
+
+  private final LruMap<String> sourceHashes = new LruMap<>();
+
+  private ChangeLogCache() {
+  }
+
+  /**
+   * Returns the changelog that was parsed from the resource of the bundle with the same
+   * parameters or <code>null</code> if there is no such entry in the cache.
+   */
+  public synchronized CachedChangeLog get(final Bundle bundle, final String resourceName,
+      final String parametersKey) {
+    ensureBundleListener();
+    return entries.get(new Key(bundle, resourceName, parametersKey));
+  }
+
+  /**
+   * Registers the bundle listener with the context of the current bundle. The registration is
+   * checked every time as the listener is dropped by the framework when this bundle is stopped.
+   */
+  private void ensureBundleListener() {
+    Bundle ownBundle = FrameworkUtil.getBundle(ChangeLogCache.class);
+    BundleContext bundleContext = (ownBundle == null) ? null : ownBundle.getBundleContext();
+    if (bundleContext == null || bundleContext == listenerContext) {
+      return;
+    }
+
+    entries.clear();
+    parameterUsages.clear();
+    sourceHashes.clear();
+    String maxSizeProperty =
+        bundleContext.getProperty(LiquibaseDataSourceConstants.FRAMEWORK_PROP_CHANGELOG_CACHE_SIZE);
+    maxSize = (maxSizeProperty == null) ? DEFAULT_MAX_SIZE : Integer.parseInt(maxSizeProperty);
+    bundleContext.addBundleListener(bundleListener);
+    listenerContext = bundleContext;
+  }
+
+  /**
+   * Returns whether the files of the changelog resource of the bundle use parameters or
+   * <code>null</code> if it is not known yet.
+   */
+  public synchronized Boolean getParameterUsage(final Bundle bundle, final String resourceName) {
+    ensureBundleListener();
+    return parameterUsages.get(new Key(bundle, resourceName, ""));
+  }
+
+  /**
+   * Returns the hash of the files of the changelog resource of the bundle or <code>null</code> if
+   * it is not known yet.
+   */
+  public synchronized String getSourceHash(final Bundle bundle, final String resourceName) {
+    ensureBundleListener();
+    return sourceHashes.get(new Key(bundle, resourceName, ""));
+  }
+
+  private synchronized void invalidate(final long bundleId) {
+    invalidate(entries.keySet().iterator(), bundleId);
+    invalidate(parameterUsages.keySet().iterator(), bundleId);
+    invalidate(sourceHashes.keySet().iterator(), bundleId);
+  }
+
+  private void invalidate(final Iterator<Key> iterator, final long bundleId) {
+    while (iterator.hasNext()) {
+      if (iterator.next().bundleId == bundleId) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Stores a parsed changelog in the cache.
+   */
+  public synchronized void put(final Bundle bundle, final String resourceName,
+      final String parametersKey, final CachedChangeLog changeLog) {
+    ensureBundleListener();
+    if (maxSize > 0 && bundle.getState() != Bundle.UNINSTALLED) {
+      entries.put(new Key(bundle, resourceName, parametersKey), changeLog);
+    }
+  }
+
+  /**
+   * Stores whether the files of the changelog resource of the bundle use parameters.
+   */
+  public synchronized void putParameterUsage(final Bundle bundle, final String resourceName,
+      final boolean parameterUsage) {
+    ensureBundleListener();
+    if (maxSize > 0 && bundle.getState() != Bundle.UNINSTALLED) {
+      parameterUsages.put(new Key(bundle, resourceName, ""), parameterUsage);
+    }
+  }
+
+  /**
+   * Stores the hash of the files of the changelog resource of the bundle.
+   */
+  public synchronized void putSourceHash(final Bundle bundle, final String resourceName,
+      final String sourceHash) {
+    ensureBundleListener();
+    if (maxSize > 0 && bundle.getState() != Bundle.UNINSTALLED) {
+      sourceHashes.put(new Key(bundle, resourceName, ""), sourceHash);
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+
+/**
+ * Calculates a hash over the referenced changelog capabilities, the changelog files of their
+ * bundles and the settings that influence which changeSets are executed. If the hash is the same
+ * as the one that was stored after the last successful migration, the changelog files do not have
+ * to be parsed again. The hash of the changelog files of a capability is calculated only once for
+ * every revision of its bundle.
+ */
+final class ChangeLogFingerprint {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final MessageDigest digest;
+
+  ChangeLogFingerprint() {
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Adds the bundle version, the attributes and the changelog files of a capability to the
+   * fingerprint. The changelog, SQL and CSV files are added that are in the directory of the
+   * changelog resource or below, so included changelogs and the resources of the changes count as
+   * well. The bundle id and modification time are not used so the same bundle produces the same
+   * fingerprint on every node of a cluster.
+   */
+  public ChangeLogFingerprint addCapability(final BundleCapability capability) {
+    Bundle bundle = capability.getRevision().getBundle();
+    addValue(bundle.getSymbolicName());
+    addValue(String.valueOf(bundle.getVersion()));
+
+    Map<String, Object> attributes = new TreeMap<>(capability.getAttributes());
+    for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+      addValue(attribute.getKey());
+      addValue(String.valueOf(attribute.getValue()));
+    }
+
+    Object resourceName = attributes.get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE);
+    if (resourceName != null) {
+      addChangeLogFiles(bundle, String.valueOf(resourceName));
+    }
+    return this;
+  }
+
+  private void addChangeLogFiles(final Bundle bundle, final String resourceName) {
+    String sourceHash = findSourceHash(bundle, resourceName);
+    if (sourceHash == null) {
+      // Not a packaged resource, e.g. it is reachable only via the class loader
+      addValue(resourceName);
+      addResource(bundle.getResource(resourceName));
+      return;
+    }
+    addValue(sourceHash);
+  }
+
+  private void addResource(final URL resource) {
+    if (resource == null) {
+      addValue(null);
+      return;
+    }
+
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream in = resource.openStream()) {
+      int read = in.read(buffer);
+      while (read >= 0) {
+        digest.update(buffer, 0, read);
+        read = in.read(buffer);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read changelog resource: " + resource, e);
+    }
+  }
+
+  /**
+   * Adds a setting value to the fingerprint. The values are separated from each other so
+   * <code>null</code> and empty values are distinguished as well.
+   */
+  public ChangeLogFingerprint addValue(final String value) {
+    if (value == null) {
+      digest.update((byte) 0);
+    } else {
+      digest.update((byte) 1);
+      digest.update(value.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+    return this;
+  }
+
+  /**
+   * Adds multiple setting values to the fingerprint.
+   */
+  public ChangeLogFingerprint addValues(final String[] values) {
+    if (values == null) {
+      addValue(null);
+    } else {
+      addValue(String.valueOf(values.length));
+      for (String value : values) {
+        addValue(value);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Finds the changelog, SQL and CSV files of the bundle that are in the directory of the
+   * changelog resource or below.
+   *
+   * @return The files by their paths or an empty map if the changelog is not a packaged resource.
+   */
+  static SortedMap<String, URL> findChangeLogFiles(final Bundle bundle,
+      final String resourceName) {
+    int lastSlashIndex = resourceName.lastIndexOf('/');
+    String directory =
+        (lastSlashIndex < 0) ? "/" : resourceName.substring(0, lastSlashIndex + 1);
+
+    SortedMap<String, URL> entries = new TreeMap<>();
+    Enumeration<URL> foundEntries = bundle.findEntries(directory, "*", true);
+    while (foundEntries != null && foundEntries.hasMoreElements()) {
+      URL entry = foundEntries.nextElement();
+      if (ChangeLogIndex.isSourceFile(entry.getPath())) {
+        entries.put(entry.getPath(), entry);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the hash of the changelog files of the bundle, see
+   * {@link ChangeLogIndex#computeSourceHash(SortedMap)}. The hash is kept in the shared cache for
+   * the revision of the bundle.
+   *
+   * @return The hash or <code>null</code> if the changelog is not a packaged resource.
+   */
+  static String findSourceHash(final Bundle bundle, final String resourceName) {
+    ChangeLogCache changeLogCache = ChangeLogCache.getInstance();
+    String sourceHash = changeLogCache.getSourceHash(bundle, resourceName);
+    if (sourceHash == null) {
+      SortedMap<String, URL> files = findChangeLogFiles(bundle, resourceName);
+      if (files.isEmpty()) {
+        return null;
+      }
+      try {
+        sourceHash = ChangeLogIndex.computeSourceHash(files);
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot read changelog files: " + resourceName, e);
+      }
+      changeLogCache.putSourceHash(bundle, resourceName, sourceHash);
+    }
+    return sourceHash;
+  }
+
+  /**
+   * Finishes the calculation and returns the fingerprint in hexadecimal format.
+   */
+  public String toHexString() {
+    byte[] hash = digest.digest();
+    char[] result = new char[hash.length * 2];
+    for (int i = 0; i < hash.length; i++) {
+      result[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+      result[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+    }
+    return new String(result);
+  }
+}
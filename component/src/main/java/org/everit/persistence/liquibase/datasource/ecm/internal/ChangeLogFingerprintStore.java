@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import liquibase.database.Database;
+import liquibase.structure.core.Catalog;
+import liquibase.structure.core.Schema;
+import liquibase.structure.core.Table;
+
+/**
+ * Stores the fingerprints of successful migrations in a side table next to the Liquibase
+ * changelog table. A fingerprint is considered up-to-date if it is stored together with the
+ * same row count that the changelog table has currently.
+ */
+class ChangeLogFingerprintStore {
+
+  private static final String COLUMN_CHANGELOG_ROWS = "CHANGELOG_ROWS";
+
+  private static final String COLUMN_FINGERPRINT = "FINGERPRINT";
+
+  private final Connection connection;
+
+  private final Database database;
+
+  private int lastChangeLogRowCount = -1;
+
+  private final String tableName;
+
+  ChangeLogFingerprintStore(final Connection connection, final Database database,
+      final String tableName) {
+    this.connection = connection;
+    this.database = database;
+    this.tableName = tableName;
+  }
+
+  private void commitIfNecessary() throws SQLException {
+    if (!connection.getAutoCommit()) {
+      connection.commit();
+    }
+  }
+
+  /**
+   * Counts the rows of the Liquibase changelog table.
+   *
+   * @return The number of rows or -1 if the changelog table does not exist.
+   */
+  public int countChangeLogRows() throws SQLException {
+    String changeLogTableName = database.getDatabaseChangeLogTableName();
+    if (!tableExists(changeLogTableName)) {
+      return -1;
+    }
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet =
+            statement.executeQuery("SELECT COUNT(*) FROM " + escapeTableName(changeLogTableName))) {
+      resultSet.next();
+      lastChangeLogRowCount = resultSet.getInt(1);
+      return lastChangeLogRowCount;
+    }
+  }
+
+  private void createTable() throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE " + escapeTableName(tableName) + " ("
+          + COLUMN_FINGERPRINT + " VARCHAR(64) NOT NULL PRIMARY KEY, "
+          + COLUMN_CHANGELOG_ROWS + " INTEGER NOT NULL)");
+    }
+  }
+
+  private String escapeTableName(final String name) {
+    return database.escapeTableName(database.getLiquibaseCatalogName(),
+        database.getLiquibaseSchemaName(), name);
+  }
+
+  /**
+   * Returns the row count of the changelog table that was queried last time or -1 if it has not
+   * been queried yet.
+   */
+  public int getLastChangeLogRowCount() {
+    return lastChangeLogRowCount;
+  }
+
+  private boolean isStoredByOtherNode(final String fingerprint, final SQLException cause) {
+    try {
+      return isUpToDate(fingerprint);
+    } catch (SQLException e) {
+      cause.addSuppressed(e);
+      return false;
+    }
+  }
+
+  /**
+   * Checks whether the fingerprint was stored by a previous migration and the changelog table
+   * did not change since then.
+   */
+  public boolean isUpToDate(final String fingerprint) throws SQLException {
+    if (!tableExists(tableName)) {
+      return false;
+    }
+
+    Integer storedRowCount = null;
+    try (PreparedStatement statement = connection.prepareStatement(
+        "SELECT " + COLUMN_CHANGELOG_ROWS + " FROM " + escapeTableName(tableName) + " WHERE "
+            + COLUMN_FINGERPRINT + " = ?")) {
+      statement.setString(1, fingerprint);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        if (resultSet.next()) {
+          storedRowCount = resultSet.getInt(1);
+        }
+      }
+    }
+
+    return storedRowCount != null && storedRowCount.intValue() == countChangeLogRows();
+  }
+
+  private void rollbackIfNecessary(final SQLException cause) {
+    try {
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+      }
+    } catch (SQLException e) {
+      cause.addSuppressed(e);
+    }
+  }
+
+  /**
+   * Stores the fingerprint with the current row count of the changelog table and deletes the
+   * fingerprints that were stored with a different row count, as those cannot be up-to-date
+   * anymore. The store can be called without holding the changelog lock, so the row of the
+   * fingerprint is updated if it exists and inserted otherwise. If another node inserts the same
+   * fingerprint at the same time, its row is kept. The transaction is rolled back on failure, so
+   * the connection can be used further even if the database aborts the transaction on the first
+   * error.
+   */
+  public void store(final String fingerprint) throws SQLException {
+    int changeLogRows = countChangeLogRows();
+    if (changeLogRows < 0) {
+      return;
+    }
+
+    try {
+      if (!tableExists(tableName)) {
+        createTable();
+      }
+
+      int updatedRows;
+      try (PreparedStatement statement = connection.prepareStatement(
+          "UPDATE " + escapeTableName(tableName) + " SET " + COLUMN_CHANGELOG_ROWS + " = ? WHERE "
+              + COLUMN_FINGERPRINT + " = ?")) {
+        statement.setInt(1, changeLogRows);
+        statement.setString(2, fingerprint);
+        updatedRows = statement.executeUpdate();
+      }
+
+      if (updatedRows == 0) {
+        try (PreparedStatement statement = connection.prepareStatement(
+            "INSERT INTO " + escapeTableName(tableName) + " (" + COLUMN_FINGERPRINT + ", "
+                + COLUMN_CHANGELOG_ROWS + ") VALUES (?, ?)")) {
+          statement.setString(1, fingerprint);
+          statement.setInt(2, changeLogRows);
+          statement.executeUpdate();
+        }
+      }
+
+      try (PreparedStatement statement = connection.prepareStatement(
+          "DELETE FROM " + escapeTableName(tableName) + " WHERE " + COLUMN_CHANGELOG_ROWS
+              + " <> ?")) {
+        statement.setInt(1, changeLogRows);
+        statement.executeUpdate();
+      }
+      commitIfNecessary();
+    } catch (SQLException e) {
+      rollbackIfNecessary(e);
+      if (!isStoredByOtherNode(fingerprint, e)) {
+        throw e;
+      }
+    }
+  }
+
+  private boolean tableExists(final String name) throws SQLException {
+    return tableExists(connection, database, name);
+  }
+
+  /**
+   * Checks whether a table exists in the Liquibase catalog and schema of the database.
+   */
+  static boolean tableExists(final Connection connection, final Database database,
+      final String name) throws SQLException {
+    String catalog = null;
+    if (database.supportsCatalogs() && database.getLiquibaseCatalogName() != null) {
+      catalog = database.correctObjectName(database.getLiquibaseCatalogName(), Catalog.class);
+    }
+    String schema = null;
+    if (database.supportsSchemas() && database.getLiquibaseSchemaName() != null) {
+      schema = database.correctObjectName(database.getLiquibaseSchemaName(), Schema.class);
+    }
+
+    DatabaseMetaData metaData = connection.getMetaData();
+    try (ResultSet resultSet = metaData.getTables(catalog, schema,
+        database.correctObjectName(name, Table.class), new String[] { "TABLE" })) {
+      return resultSet.next();
+    }
+  }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import liquibase.Labels;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.logging.LogFactory;
+import liquibase.util.StringUtils;
+
+/**
+ * Binary index of a changelog that is written at build time by
+ * {@link org.everit.persistence.liquibase.datasource.ecm.ChangeLogIndexCompiler}
+ * next to the changelog resource. The index contains everything that is needed to find the
+ * pending changeSets without parsing the changelog: the identity, the contexts, labels and dbms
+ * of every changeSet, whether it runs always or on change and its checkSum. The strings are
+ * stored once in a pool, so the index stays small and loading it allocates every distinct string
+ * only once.
+ *
+ * <p>
+ * The index stores a hash of the changelog files it was compiled from. If the files of the bundle
+ * have a different hash, the index is stale and the changelog has to be parsed.
+ */
+public final class ChangeLogIndex {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final Set<String> CHANGELOG_FILE_EXTENSIONS =
+      new HashSet<>(Arrays.asList("json", "sql", "xml", "yaml", "yml"));
+
+  private static final String DATA_FILE_EXTENSION = "csv";
+
+  private static final byte FLAG_ALWAYS_RUN = 1;
+
+  private static final byte FLAG_RUN_ON_CHANGE = 2;
+
+  /**
+   * The suffix that is appended to the name of the changelog resource to get the name of its
+   * index.
+   */
+  public static final String INDEX_SUFFIX = ".idx";
+
+  private static final int MAGIC = 0x4C424958;
+
+  private static final int NO_STRING = -1;
+
+  private static final String PARAMETER_PREFIX = "${";
+
+  private static final int VERSION = 1;
+
+  /**
+   * Calculates the hash of the changelog files that the index is compiled from. The files that
+   * are indexes themselves are skipped.
+   *
+   * @param files
+   *          The files by their paths within the bundle.
+   */
+  public static String computeSourceHash(final SortedMap<String, URL> files)
+      throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for (Map.Entry<String, URL> file : files.entrySet()) {
+      if (file.getKey().endsWith(INDEX_SUFFIX)) {
+        continue;
+      }
+      digest.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      try (InputStream in = file.getValue().openStream()) {
+        int read = in.read(buffer);
+        while (read >= 0) {
+          digest.update(buffer, 0, read);
+          read = in.read(buffer);
+        }
+      }
+      digest.update((byte) 0);
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Tells whether any of the changelog files contains a <code>${...}</code> parameter. The values
+   * of the parameters, and so the checkSums of the changeSets, might depend on the database the
+   * changelog is parsed for. Only the changelogs and the SQL files are searched, as Liquibase does
+   * not substitute parameters in the data files. The files are read in chunks.
+   *
+   * @param files
+   *          The files by their paths within the bundle.
+   */
+  public static boolean containsParameter(final SortedMap<String, URL> files)
+      throws IOException {
+    byte dollar = (byte) PARAMETER_PREFIX.charAt(0);
+    byte brace = (byte) PARAMETER_PREFIX.charAt(1);
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for (Map.Entry<String, URL> file : files.entrySet()) {
+      if (!CHANGELOG_FILE_EXTENSIONS.contains(getExtension(file.getKey()))) {
+        continue;
+      }
+      try (InputStream in = file.getValue().openStream()) {
+        // The characters of the prefix are single bytes in UTF-8 and never part of a multi-byte
+        // character, so the bytes can be searched
+        boolean afterDollar = false;
+        int read = in.read(buffer);
+        while (read >= 0) {
+          for (int i = 0; i < read; i++) {
+            if (afterDollar && buffer[i] == brace) {
+              return true;
+            }
+            afterDollar = buffer[i] == dollar;
+          }
+          read = in.read(buffer);
+        }
+      }
+    }
+    return false;
+  }
+
+  private static String getExtension(final String path) {
+    int lastDotIndex = path.lastIndexOf('.');
+    if (lastDotIndex <= path.lastIndexOf('/')) {
+      return "";
+    }
+    return path.substring(lastDotIndex + 1).toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Tells whether a file can be a source of a changelog: a changelog in one of the formats of
+   * Liquibase, an SQL file of a sqlFile change or a CSV file of a loadData change. Only these
+   * files are part of the hash of the changelog files, so the other resources of the bundle do
+   * not have to be read.
+   *
+   * @param path
+   *          The path of the file within the bundle.
+   */
+  public static boolean isSourceFile(final String path) {
+    String extension = getExtension(path);
+    return CHANGELOG_FILE_EXTENSIONS.contains(extension)
+        || DATA_FILE_EXTENSION.equals(extension);
+  }
+
+  private static ByteBuffer load(final URL index) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream in = index.openStream()) {
+      int read = in.read(buffer);
+      while (read >= 0) {
+        out.write(buffer, 0, read);
+        read = in.read(buffer);
+      }
+    }
+    return ByteBuffer.wrap(out.toByteArray());
+  }
+
+  private static String nullIfEmpty(final String value) {
+    return (value == null || value.isEmpty()) ? null : value;
+  }
+
+  /**
+   * Loads the index of a changelog.
+   *
+   * @param index
+   *          The index resource.
+   * @param resourceName
+   *          The name of the changelog resource.
+   * @param sourceHash
+   *          The hash of the changelog files of the bundle to check whether the index is stale.
+   * @return A changelog that contains the changeSets without their changes and knows their
+   *         checkSums or <code>null</code> if the index is stale or cannot be read.
+   */
+  static CachedChangeLog read(final URL index, final String resourceName,
+      final String sourceHash) {
+    try {
+      ByteBuffer buffer = load(index);
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        LogFactory.getLogger().info("Unsupported changelog index format, ignoring: " + index);
+        return null;
+      }
+
+      String[] strings = readStrings(buffer);
+      if (!strings[buffer.getInt()].equals(sourceHash)) {
+        LogFactory.getLogger().info("Changelog index is stale, ignoring: " + index);
+        return null;
+      }
+
+      DatabaseChangeLog changeLog = new DatabaseChangeLog(resourceName);
+      CachedChangeLog cachedChangeLog = new CachedChangeLog(changeLog);
+      int changeSetCount = buffer.getInt();
+      for (int i = 0; i < changeSetCount; i++) {
+        String filePath = strings[buffer.getInt()];
+        String id = strings[buffer.getInt()];
+        String author = strings[buffer.getInt()];
+        String contexts = readNullableString(buffer, strings);
+        String labels = readNullableString(buffer, strings);
+        String dbms = readNullableString(buffer, strings);
+        byte flags = buffer.get();
+        String checkSum = strings[buffer.getInt()];
+
+        ChangeSet changeSet = new ChangeSet(id, author, (flags & FLAG_ALWAYS_RUN) != 0,
+            (flags & FLAG_RUN_ON_CHANGE) != 0, filePath, contexts, dbms, changeLog);
+        if (labels != null) {
+          changeSet.setLabels(new Labels(labels));
+        }
+        changeLog.addChangeSet(changeSet);
+        cachedChangeLog.putCheckSum(changeSet, checkSum);
+      }
+      return cachedChangeLog;
+    } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+      LogFactory.getLogger().warning("Cannot read changelog index, ignoring: " + index, e);
+      return null;
+    }
+  }
+
+  private static String readNullableString(final ByteBuffer buffer, final String[] strings) {
+    int index = buffer.getInt();
+    return (index == NO_STRING) ? null : strings[index];
+  }
+
+  private static String[] readStrings(final ByteBuffer buffer) {
+    String[] strings = new String[buffer.getInt()];
+    for (int i = 0; i < strings.length; i++) {
+      int length = buffer.getInt();
+      strings[i] = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+          StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    }
+    return strings;
+  }
+
+  private static int stringIndex(final String value, final List<String> strings,
+      final Map<String, Integer> stringIndexes) {
+    if (value == null) {
+      return NO_STRING;
+    }
+    Integer index = stringIndexes.get(value);
+    if (index == null) {
+      index = strings.size();
+      strings.add(value);
+      stringIndexes.put(value, index);
+    }
+    return index;
+  }
+
+  private static String toNullableString(final Iterable<?> values) {
+    if (values == null) {
+      return null;
+    }
+    List<String> strings = new ArrayList<>();
+    for (Object value : values) {
+      strings.add(String.valueOf(value));
+    }
+    return nullIfEmpty(StringUtils.join(strings, ","));
+  }
+
+  /**
+   * Writes the index of a parsed changelog.
+   *
+   * @param parsedChangeLog
+   *          The parsed changelog.
+   * @param sourceHash
+   *          The hash of the changelog files, see {@link #computeSourceHash(SortedMap)}.
+   * @param out
+   *          The stream to write the index to. It is not closed.
+   */
+  public static void write(final DatabaseChangeLog parsedChangeLog, final String sourceHash,
+      final OutputStream out) throws IOException {
+    List<String> strings = new ArrayList<>();
+    Map<String, Integer> stringIndexes = new HashMap<>();
+    CachedChangeLog changeLog = new CachedChangeLog(parsedChangeLog);
+    List<ChangeSet> changeSets = parsedChangeLog.getChangeSets();
+    changeLog.computeCheckSums(changeSets);
+
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    DataOutputStream entryOut = new DataOutputStream(entries);
+    entryOut.writeInt(changeSets.size());
+    for (ChangeSet changeSet : changeSets) {
+      entryOut.writeInt(stringIndex(changeSet.getFilePath(), strings, stringIndexes));
+      entryOut.writeInt(stringIndex(changeSet.getId(), strings, stringIndexes));
+      entryOut.writeInt(stringIndex(changeSet.getAuthor(), strings, stringIndexes));
+      entryOut.writeInt(stringIndex(nullIfEmpty((changeSet.getContexts() == null) ? null
+          : changeSet.getContexts().toString()), strings, stringIndexes));
+      entryOut.writeInt(stringIndex(nullIfEmpty((changeSet.getLabels() == null) ? null
+          : changeSet.getLabels().toString()), strings, stringIndexes));
+      entryOut.writeInt(
+          stringIndex(toNullableString(changeSet.getDbmsSet()), strings, stringIndexes));
+      byte flags = 0;
+      if (changeSet.isAlwaysRun()) {
+        flags |= FLAG_ALWAYS_RUN;
+      }
+      if (changeSet.isRunOnChange()) {
+        flags |= FLAG_RUN_ON_CHANGE;
+      }
+      entryOut.writeByte(flags);
+      entryOut.writeInt(stringIndex(changeLog.getCheckSum(changeSet), strings, stringIndexes));
+    }
+    int sourceHashIndex = stringIndex(sourceHash, strings, stringIndexes);
+    entryOut.flush();
+
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeInt(MAGIC);
+    dataOut.writeInt(VERSION);
+    dataOut.writeInt(strings.size());
+    for (String string : strings) {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      dataOut.writeInt(bytes.length);
+      dataOut.write(bytes);
+    }
+    dataOut.writeInt(sourceHashIndex);
+    entries.writeTo(dataOut);
+    dataOut.flush();
+  }
+
+  private ChangeLogIndex() {
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import liquibase.database.Database;
+import liquibase.database.DatabaseConnection;
+import liquibase.database.PreparedStatementFactory;
+import liquibase.exception.DatabaseException;
+import liquibase.statement.AbstractSqlStatement;
+import liquibase.statement.ExecutablePreparedStatement;
+
+/**
+ * Statement that fills a new column in chunks and commits after each chunk, so the rows are not
+ * locked by one long transaction. The update is repeated until it touches less rows than the chunk
+ * size or until as many rows were updated as there were empty ones at the start, so a value that
+ * evaluates to null cannot cause an endless loop.
+ */
+class ChunkedBackfillStatement extends AbstractSqlStatement
+    implements ExecutablePreparedStatement {
+
+  private final String countSql;
+
+  private final Database database;
+
+  private final OnlineDdlSettings settings;
+
+  private final String updateSql;
+
+  /**
+   * Constructor.
+   *
+   * @param database
+   *          The database that the statement is executed on.
+   * @param countSql
+   *          The query that counts the rows to be updated.
+   * @param updateSql
+   *          The update that fills at most one chunk of rows.
+   * @param settings
+   *          The settings that specify the throttling between the chunks.
+   */
+  ChunkedBackfillStatement(final Database database, final String countSql,
+      final String updateSql, final OnlineDdlSettings settings) {
+    this.database = database;
+    this.countSql = countSql;
+    this.updateSql = updateSql;
+    this.settings = settings;
+  }
+
+  private void commitIfNecessary(final DatabaseConnection connection) throws DatabaseException {
+    if (!connection.getAutoCommit()) {
+      connection.commit();
+    }
+  }
+
+  private long countRows(final PreparedStatementFactory factory)
+      throws DatabaseException, SQLException {
+    try (PreparedStatement statement = factory.create(countSql);
+        ResultSet resultSet = statement.executeQuery()) {
+      resultSet.next();
+      return resultSet.getLong(1);
+    }
+  }
+
+  @Override
+  public void execute(final PreparedStatementFactory factory) throws DatabaseException {
+    DatabaseConnection connection = database.getConnection();
+    // Releases the locks of the preceding DDL statements before the long running part
+    commitIfNecessary(connection);
+    try {
+      long remainingRows = countRows(factory);
+      try (PreparedStatement statement = factory.create(updateSql)) {
+        int updatedRows = settings.getChunkSize();
+        while (remainingRows > 0 && updatedRows >= settings.getChunkSize()) {
+          updatedRows = statement.executeUpdate();
+          remainingRows -= updatedRows;
+          commitIfNecessary(connection);
+          if (remainingRows > 0 && settings.getThrottleMillis() > 0) {
+            Thread.sleep(settings.getThrottleMillis());
+          }
+        }
+      }
+    } catch (SQLException e) {
+      throw new DatabaseException("Error executing SQL " + updateSql + ": " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DatabaseException("Interrupted while backfilling with SQL " + updateSql, e);
+    }
+  }
+}
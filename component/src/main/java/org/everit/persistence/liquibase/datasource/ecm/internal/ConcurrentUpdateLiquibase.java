@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.exception.LiquibaseException;
+import liquibase.executor.Executor;
+import liquibase.executor.ExecutorService;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Liquibase that can update several databases at the same time. Liquibase resets its lock,
+ * changelog history and executor services at the end of every update, dropping the services of
+ * all databases, including the ones that are being updated on other threads. The reset is
+ * deferred until the last running update of the JVM finishes. The executor of the update is
+ * registered after the update is counted as running, so it cannot be dropped while the update
+ * runs.
+ */
+class ConcurrentUpdateLiquibase extends Liquibase {
+
+  private static final Object MUTEX = new Object();
+
+  private static boolean resetRequested;
+
+  private static int runningUpdateCount;
+
+  private Executor updateExecutor;
+
+  ConcurrentUpdateLiquibase(final DatabaseChangeLog changeLog,
+      final ResourceAccessor resourceAccessor, final Database database) {
+    super(changeLog, resourceAccessor, database);
+  }
+
+  @Override
+  protected void resetServices() {
+    synchronized (MUTEX) {
+      resetRequested = true;
+    }
+  }
+
+  /**
+   * Sets the executor that is registered for the database when the update starts.
+   */
+  public void setUpdateExecutor(final Executor updateExecutor) {
+    this.updateExecutor = updateExecutor;
+  }
+
+  @Override
+  public void update(final String tag, final Contexts contexts,
+      final LabelExpression labelExpression) throws LiquibaseException {
+    synchronized (MUTEX) {
+      runningUpdateCount++;
+    }
+    try {
+      if (updateExecutor != null) {
+        ExecutorService.getInstance().setExecutor(getDatabase(), updateExecutor);
+      }
+      super.update(tag, contexts, labelExpression);
+    } finally {
+      synchronized (MUTEX) {
+        runningUpdateCount--;
+        if (resetRequested && runningUpdateCount == 0) {
+          resetRequested = false;
+          super.resetServices();
+        }
+      }
+    }
+  }
+}
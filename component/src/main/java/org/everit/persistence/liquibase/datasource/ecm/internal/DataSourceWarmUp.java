@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import liquibase.logging.LogFactory;
+
+/**
+ * Opens connections in parallel and runs queries on them before the DataSource is registered, so
+ * the connection pool and the caches of the database are filled when the first consumer request
+ * arrives. Every connection is kept open until all of them are opened, otherwise a pool could
+ * serve all the tasks with the same connection. The connections are kept open for a limited time
+ * only, as the pool might not be able to open as many connections at the same time.
+ */
+class DataSourceWarmUp {
+
+  /**
+   * The maximum time an opened connection waits for the others to be opened.
+   */
+  private static final long OPEN_WAIT_MILLIS = 10000;
+
+  private final int connectionCount;
+
+  private final DataSource dataSource;
+
+  private final String[] queries;
+
+  DataSourceWarmUp(final DataSource dataSource, final int connectionCount,
+      final String[] queries) {
+    this.dataSource = dataSource;
+    this.connectionCount = connectionCount;
+    this.queries = (queries == null) ? new String[0] : queries.clone();
+  }
+
+  private void runQueries(final Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      for (String query : queries) {
+        if (statement.execute(query)) {
+          try (ResultSet resultSet = statement.getResultSet()) {
+            while (resultSet.next()) {
+              // Reading every row brings the touched pages into the cache of the database
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the warm-up. Failures are logged only as the DataSource is usable without warm-up.
+   *
+   * @param threadName
+   *          The prefix of the names of the threads that open the connections.
+   */
+  public void warmUp(final String threadName) {
+    if (connectionCount <= 0) {
+      return;
+    }
+
+    final CountDownLatch allOpened = new CountDownLatch(connectionCount);
+    final AtomicBoolean openWaitExpired = new AtomicBoolean(false);
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < connectionCount; i++) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          boolean counted = false;
+          try (Connection connection = dataSource.getConnection()) {
+            try {
+              runQueries(connection);
+            } finally {
+              allOpened.countDown();
+              counted = true;
+            }
+            if (!allOpened.await(OPEN_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+              // The pool is probably smaller, the waiting connections block the others
+              openWaitExpired.set(true);
+            }
+          } finally {
+            // A failed getConnection must not block the other tasks
+            if (!counted) {
+              allOpened.countDown();
+            }
+          }
+          return null;
+        }
+      });
+    }
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(connectionCount, new NamedThreadFactory(threadName));
+    try {
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          LogFactory.getLogger().warning("DataSource warm-up failed", e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+    if (openWaitExpired.get()) {
+      LogFactory.getLogger().warning("Not all of the " + connectionCount
+          + " warm-up connections could be open at the same time, the connection pool is"
+          + " probably smaller");
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.sql.DataSource;
+
+import liquibase.database.Database;
+import liquibase.database.DatabaseConnection;
+import liquibase.database.DatabaseFactory;
+import liquibase.exception.DatabaseException;
+
+/**
+ * Cache of the detected Liquibase database implementations that is shared by all component
+ * instances. The entries are held weakly by the referenced DataSource service object, so an entry
+ * disappears together with the service.
+ */
+final class DatabaseDialectCache {
+
+  /**
+   * The detected implementation and the default catalog and schema of the connections of a
+   * DataSource.
+   */
+  private static final class Dialect {
+
+    private final String defaultCatalogName;
+
+    private final String defaultSchemaName;
+
+    private final Class<? extends Database> implementation;
+
+    Dialect(final Database database) {
+      this.implementation = database.getClass();
+      this.defaultCatalogName = database.getDefaultCatalogName();
+      this.defaultSchemaName = database.getDefaultSchemaName();
+    }
+
+    Database createDatabase(final DatabaseConnection connection) throws DatabaseException {
+      Database database;
+      try {
+        database = implementation.newInstance();
+      } catch (InstantiationException | IllegalAccessException e) {
+        throw new DatabaseException("Cannot instantiate " + implementation, e);
+      }
+      database.setConnection(connection);
+      database.setDefaultCatalogName(defaultCatalogName);
+      database.setDefaultSchemaName(defaultSchemaName);
+      return database;
+    }
+  }
+
+  private static final DatabaseDialectCache INSTANCE = new DatabaseDialectCache();
+
+  public static DatabaseDialectCache getInstance() {
+    return INSTANCE;
+  }
+
+  private final Map<DataSource, Dialect> dialects = new WeakHashMap<>();
+
+  private DatabaseDialectCache() {
+  }
+
+  /**
+   * Creates the database object of the connection. The implementation is detected with the
+   * metadata queries of Liquibase only for the first connection of a DataSource, later the cached
+   * implementation is instantiated directly.
+   *
+   * @param dataSource
+   *          The DataSource the connection is coming from.
+   * @param connection
+   *          The connection to create the database object for.
+   */
+  public Database createDatabase(final DataSource dataSource,
+      final DatabaseConnection connection) throws DatabaseException {
+    Dialect dialect;
+    synchronized (dialects) {
+      dialect = dialects.get(dataSource);
+    }
+    if (dialect != null) {
+      return dialect.createDatabase(connection);
+    }
+
+    Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(connection);
+    dialect = new Dialect(database);
+    synchronized (dialects) {
+      dialects.put(dataSource, dialect);
+    }
+    return database;
+  }
+}
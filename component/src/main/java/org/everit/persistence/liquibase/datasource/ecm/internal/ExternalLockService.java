@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import liquibase.database.Database;
+import liquibase.lockservice.DatabaseChangeLogLock;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.lockservice.StandardLockService;
+
+/**
+ * Lock service that is used by Liquibase for the {@link Database} instances whose changelog lock
+ * is held by the component itself. This makes it possible to take the lock only once and run
+ * multiple updates with it, even on multiple connections at the same time.
+ */
+public class ExternalLockService extends StandardLockService {
+
+  private static final AtomicBoolean INSTALLED = new AtomicBoolean(false);
+
+  private static final Set<Database> LOCKED_DATABASES =
+      Collections.newSetFromMap(new ConcurrentHashMap<Database, Boolean>());
+
+  private static final int PRIORITY = 100;
+
+  /**
+   * Registers the lock service into Liquibase if it has not been registered yet.
+   */
+  static void install() {
+    if (INSTALLED.compareAndSet(false, true)) {
+      LockServiceFactory.getInstance().register(new ExternalLockService());
+    }
+  }
+
+  /**
+   * Marks the database as one whose changelog lock is held by the caller until
+   * {@link #unregister(Database)} is called.
+   */
+  static void register(final Database database) {
+    install();
+    LOCKED_DATABASES.add(database);
+  }
+
+  static void unregister(final Database database) {
+    LOCKED_DATABASES.remove(database);
+  }
+
+  @Override
+  public boolean acquireLock() {
+    return true;
+  }
+
+  @Override
+  public void forceReleaseLock() {
+  }
+
+  @Override
+  public int getPriority() {
+    return PRIORITY;
+  }
+
+  @Override
+  public boolean hasChangeLogLock() {
+    return true;
+  }
+
+  @Override
+  public void init() {
+  }
+
+  @Override
+  public DatabaseChangeLogLock[] listLocks() {
+    return new DatabaseChangeLogLock[0];
+  }
+
+  @Override
+  public void releaseLock() {
+  }
+
+  @Override
+  public void reset() {
+  }
+
+  @Override
+  public boolean supports(final Database database) {
+    return LOCKED_DATABASES.contains(database);
+  }
+
+  @Override
+  public void waitForLock() {
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * DataSource that is registered before the migration is finished. Getting a connection or the
+ * wrapped DataSource waits until the migration completes. After that the calls are passed to the
+ * wrapped DataSource with a single volatile read as overhead.
+ */
+class GatedDataSource implements DataSource {
+
+  private volatile Throwable failure;
+
+  private final CountDownLatch latch = new CountDownLatch(1);
+
+  private volatile boolean open = false;
+
+  private final long timeoutMillis;
+
+  private final DataSource wrapped;
+
+  GatedDataSource(final DataSource wrapped, final long timeoutMillis) {
+    this.wrapped = wrapped;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  private void awaitMigration() throws SQLException {
+    try {
+      if (!latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new SQLTimeoutException(
+            "Database migration did not finish within " + timeoutMillis + " ms");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for the database migration", e);
+    }
+    if (failure != null) {
+      throw new SQLException("Database migration failed", failure);
+    }
+  }
+
+  /**
+   * Releases the waiting and all further callers with an exception. It has no effect if the gate
+   * is already opened.
+   */
+  public synchronized void fail(final Throwable cause) {
+    if (latch.getCount() > 0) {
+      failure = cause;
+      latch.countDown();
+    }
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    if (!open) {
+      awaitMigration();
+    }
+    return wrapped.getConnection();
+  }
+
+  @Override
+  public Connection getConnection(final String username, final String password)
+      throws SQLException {
+    if (!open) {
+      awaitMigration();
+    }
+    return wrapped.getConnection(username, password);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return wrapped.getLoginTimeout();
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return wrapped.getLogWriter();
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return wrapped.getParentLogger();
+  }
+
+  @Override
+  public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return true;
+    }
+    if (!open) {
+      awaitMigration();
+    }
+    return iface.isInstance(wrapped) || wrapped.isWrapperFor(iface);
+  }
+
+  /**
+   * Lets the waiting and all further callers through to the wrapped DataSource. The gate can be
+   * opened after a failure as well, if a later migration succeeded.
+   */
+  public synchronized void open() {
+    failure = null;
+    open = true;
+    latch.countDown();
+  }
+
+  @Override
+  public void setLoginTimeout(final int seconds) throws SQLException {
+    wrapped.setLoginTimeout(seconds);
+  }
+
+  @Override
+  public void setLogWriter(final PrintWriter out) throws SQLException {
+    wrapped.setLogWriter(out);
+  }
+
+  @Override
+  public <T> T unwrap(final Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return iface.cast(this);
+    }
+    if (!open) {
+      awaitMigration();
+    }
+    if (iface.isInstance(wrapped)) {
+      return iface.cast(wrapped);
+    }
+    return wrapped.unwrap(iface);
+  }
+}
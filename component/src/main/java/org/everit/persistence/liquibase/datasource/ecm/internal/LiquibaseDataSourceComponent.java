@@ -15,10 +15,32 @@
  */
 package org.everit.persistence.liquibase.datasource.ecm.internal;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
@@ -30,7 +52,10 @@ import org.everit.osgi.ecm.annotation.Deactivate;
 import org.everit.osgi.ecm.annotation.ManualService;
 import org.everit.osgi.ecm.annotation.ManualServices;
 import org.everit.osgi.ecm.annotation.ServiceRef;
+import org.everit.osgi.ecm.annotation.Update;
 import org.everit.osgi.ecm.annotation.attribute.BooleanAttribute;
+import org.everit.osgi.ecm.annotation.attribute.IntegerAttribute;
+import org.everit.osgi.ecm.annotation.attribute.LongAttribute;
 import org.everit.osgi.ecm.annotation.attribute.StringAttribute;
 import org.everit.osgi.ecm.annotation.attribute.StringAttributeOption;
 import org.everit.osgi.ecm.annotation.attribute.StringAttributes;
@@ -38,8 +63,13 @@ import org.everit.osgi.ecm.component.ComponentContext;
 import org.everit.osgi.ecm.component.ConfigurationException;
 import org.everit.osgi.ecm.extender.ExtendComponent;
 import org.everit.persistence.liquibase.datasource.ecm.LiquibaseDataSourceConstants;
+import org.everit.persistence.liquibase.datasource.ecm.LiquibaseDataSourceConstants.MigrationPhase;
+import org.everit.persistence.liquibase.datasource.ecm.MigrationHistory;
+import org.everit.persistence.liquibase.datasource.ecm.MigrationMetrics;
+import org.everit.persistence.liquibase.datasource.ecm.MigrationMetricsListener;
 import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
 import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.wiring.BundleCapability;
@@ -47,13 +77,16 @@ import org.osgi.framework.wiring.BundleCapability;
 import liquibase.Contexts;
 import liquibase.LabelExpression;
 import liquibase.Liquibase;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
 import liquibase.database.Database;
-import liquibase.database.DatabaseConnection;
-import liquibase.database.DatabaseFactory;
 import liquibase.database.ObjectQuotingStrategy;
-import liquibase.database.jvm.JdbcConnection;
 import liquibase.exception.DatabaseException;
 import liquibase.exception.LiquibaseException;
+import liquibase.logging.LogFactory;
+import liquibase.parser.ChangeLogParserFactory;
 import liquibase.resource.ResourceAccessor;
 
 /**
@@ -67,7 +100,7 @@ import liquibase.resource.ResourceAccessor;
         + " files must be referenced via liquibase.schema bundle capability.")
 @StringAttributes({
     @StringAttribute(attributeId = Constants.SERVICE_DESCRIPTION,
-        defaultValue = "Everit Liquibase DataSource",
+        defaultValue = "Everit Liquibase DataSource", dynamic = true,
         priority = LiquibaseDataSourceComponent.P_SERVICE_DESCRIPTION,
         label = "Service Description",
         description = "The description of this component configuration. It is used to easily "
@@ -75,12 +108,26 @@ import liquibase.resource.ResourceAccessor;
 @ManualServices(@ManualService(DataSource.class))
 public class LiquibaseDataSourceComponent {
 
+  /**
+   * The time the deactivation waits for a running asynchronous migration if no migration timeout
+   * is configured.
+   */
+  private static final long MIGRATION_STOP_TIMEOUT = 60000;
+
   private static final float P_AUTO_COMMIT = 8;
 
+  private static final float P_BATCH_SIZE = 36;
+
   private static final float P_CAN_CACHE_LIQUIBASE_TABLE_INFO = 20;
 
+  private static final float P_CHANGE_SET_TIMEOUT = 48;
+
+  private static final float P_ASYNC_MIGRATION = 21;
+
   public static final int P_CONTEXTS = 5;
 
+  private static final float P_COORDINATED_MIGRATION = 46;
+
   private static final float P_CURRENT_DATETIME_FUNCTION = 19;
 
   private static final float P_DATABASE_CHANGE_LOG_LOCK_TABLE_NAME = 17;
@@ -93,20 +140,56 @@ public class LiquibaseDataSourceComponent {
 
   public static final int P_EMBEDDED_DATA_SOURCE = 2;
 
+  private static final float P_FINGERPRINT_TABLE_NAME = 23;
+
+  private static final float P_GATED_DATA_SOURCE = 34;
+
+  private static final float P_GATED_DATA_SOURCE_TIMEOUT = 35;
+
+  private static final float P_HISTORY_FILE = 40;
+
+  private static final float P_HISTORY_MAX_FILE_SIZE = 41;
+
+  private static final float P_FORCE_FULL_CHECK = 22;
+
   public static final int P_LABEL_EXPRESSION = 6;
 
   private static final float P_LIQUIBASE_CATALOG_NAME = 10;
 
   private static final float P_LIQUIBASE_SCHEMA_NAME = 11;
 
+  private static final float P_LOAD_DATA_CHUNK_SIZE = 37;
+
+  private static final float P_LOCK_FOLLOWER_MODE = 32;
+
+  private static final float P_LOCK_INITIAL_BACKOFF = 30;
+
+  private static final float P_LOCK_MAX_BACKOFF = 31;
+
+  private static final float P_LOCK_PROVIDER = 33;
+
+  private static final float P_LOCK_WAIT_TIMEOUT = 29;
+
   public static final int P_LIQUIBASE_SERVICE = 3;
 
   private static final float P_LIQUIBASE_TABLE_SPACE_NAME = 12;
 
   public static final int P_LOG_SERVICE = 4;
 
+  private static final float P_METRICS_LISTENER = 28;
+
+  private static final float P_MIGRATION_PARALLELISM = 24;
+
+  private static final float P_MIGRATION_TIMEOUT = 49;
+
+  private static final float P_MODE = 38;
+
   private static final float P_OBJECT_QUOTING_STRATEGY = 13;
 
+  private static final float P_ONLINE_DDL_CHUNK_SIZE = 42;
+
+  private static final float P_ONLINE_DDL_THROTTLE = 43;
+
   private static final float P_OUTPUT_DEFAULT_CATALOG = 14;
 
   private static final float P_OUTPUT_DEFAULT_SCHEMA = 15;
@@ -115,14 +198,38 @@ public class LiquibaseDataSourceComponent {
 
   public static final int P_SERVICE_DESCRIPTION = 0;
 
+  private static final float P_STATEMENT_TIMEOUT = 47;
+
   public static final int P_TAG = 7;
 
+  private static final float P_TENANT_PARALLELISM = 27;
+
+  private static final float P_TENANT_SCHEMA_NAMES = 25;
+
+  private static final float P_TENANT_SCHEMA_QUERY = 26;
+
+  private static final float P_UPDATE_SQL_FILE = 39;
+
+  private static final float P_WARM_UP_CONNECTIONS = 44;
+
+  private static final float P_WARM_UP_QUERIES = 45;
+
+  private Boolean asyncMigration;
+
   private Boolean autoCommit;
 
+  private int batchSize;
+
   private Boolean canCacheLiquibaseTableInfo;
 
+  private long changeSetTimeout;
+
+  private ComponentContext<LiquibaseDataSourceComponent> componentContext;
+
   private String[] contexts;
 
+  private Boolean coordinatedMigration;
+
   private String currentDateTimeFunction;
 
   private String databaseChangeLogLockTableName;
@@ -131,30 +238,158 @@ public class LiquibaseDataSourceComponent {
 
   private DataSource dataSource;
 
+  private boolean deactivated;
+
   private String defaultCatalogName;
 
   private String defaultSchemaName;
 
+  private String fingerprintTableName;
+
+  private Boolean forceFullCheck;
+
+  private GatedDataSource gate;
+
+  private Boolean gatedDataSource;
+
+  private long gatedDataSourceTimeout;
+
+  private String historyFile;
+
+  private long historyMaxFileSize;
+
   private String labelExpression;
 
   private String liquibaseCatalogName;
 
-  private BundleCapability[] liquibaseChangeLogs;
+  private Boolean lockFollowerMode;
+
+  private long lockInitialBackoff;
+
+  private long lockMaxBackoff;
+
+  private String lockProvider;
+
+  private long lockWaitTimeout;
+
+  private volatile BundleCapability[] liquibaseChangeLogs;
 
   private String liquibaseSchemaName;
 
   private String liquibaseTableSpaceName;
 
+  private int loadDataChunkSize;
+
+  private volatile MigrationMetricsListener[] metricsListeners;
+
+  private MigrationMetricsCollector metricsCollector;
+
+  private List<String> migratedTenants;
+
+  /**
+   * The changelogs of the running migration. The referenced capabilities might change while a
+   * migration runs, but every step of a migration must work with the same changelogs.
+   */
+  private BundleCapability[] migrationChangeLogs;
+
+  private ExecutorService migrationExecutor;
+
+  private MigrationMetrics migrationMetrics;
+
+  private int migrationParallelism;
+
+  private String mode;
+
+  private Future<?> migrationFuture;
+
+  private String migrationState;
+
+  private long migrationTimeout;
+
+  private MigrationWatchdog migrationWatchdog;
+
   private String objectQuotingStrategy;
 
+  private int onlineDdlChunkSize;
+
+  private boolean onlineDdlInstalled;
+
+  private long onlineDdlThrottle;
+
   private Boolean outputDefaultCatalog;
 
   private Boolean outputDefaultSchema;
 
-  private ServiceRegistration<DataSource> serviceRegistration;
+  /**
+   * The tenants in the order of the service registrations.
+   */
+  private List<String> registeredTenants;
+
+  private final Object registrationMutex = new Object();
+
+  private String servicePid;
+
+  private final List<ServiceRegistration<DataSource>> serviceRegistrations = new ArrayList<>();
+
+  private long statementTimeout;
+
+  private boolean streamingLoadDataInstalled;
 
   private String tag;
 
+  private int tenantParallelism;
+
+  private String[] tenantSchemaNames;
+
+  private String tenantSchemaQuery;
+
+  private String updateSqlFile;
+
+  private int warmUpConnections;
+
+  private String[] warmUpQueries;
+
+  /**
+   * Acquires the changelog lock unless the session already holds it for a previous migration of
+   * the batch. In follower mode the lock is not acquired if the migration of another node makes
+   * the database up-to-date in the meantime.
+   *
+   * @return The lock or <code>null</code> if the database is up-to-date.
+   */
+  private MigrationLock acquireMigrationLock(final Database database,
+      final MigrationCoordinator.Session session, final ChangeLogFingerprintStore fingerprintStore,
+      final String fingerprint) throws SQLException, LiquibaseException {
+    String lockKey = lockProvider + '|' + database.getLiquibaseCatalogName() + '|'
+        + database.getLiquibaseSchemaName() + '|' + database.getDatabaseChangeLogLockTableName();
+    if (session != null && session.getHeldLock(lockKey) != null) {
+      return session.getHeldLock(lockKey);
+    }
+
+    long waitTimeout = (migrationWatchdog == null) ? lockWaitTimeout
+        : migrationWatchdog.limitWaitTime(lockWaitTimeout);
+    MigrationLock lock = new MigrationLock(createLockProvider(database), waitTimeout,
+        lockInitialBackoff, lockMaxBackoff);
+    long lockStartNanos = System.nanoTime();
+    boolean locked = lock.tryAcquire();
+    if (!locked && Boolean.TRUE.equals(lockFollowerMode)) {
+      // Another node is migrating. Its result is probably what this node would do as well.
+      lock.awaitRelease();
+      if (fingerprintStore.isUpToDate(fingerprint)) {
+        metricsCollector.addPhaseDuration(MigrationPhase.LOCK_ACQUISITION, lockStartNanos);
+        return null;
+      }
+    }
+    if (!locked) {
+      lock.acquire();
+    }
+    metricsCollector.addPhaseDuration(MigrationPhase.LOCK_ACQUISITION, lockStartNanos);
+
+    if (session != null) {
+      session.holdLock(lockKey, lock);
+    }
+    return lock;
+  }
+
   /**
    * Component activator method.
    */
@@ -164,40 +399,54 @@ public class LiquibaseDataSourceComponent {
       throw new ConfigurationException("schemaExpression must be defined");
     }
 
-    try (Connection connection = dataSource.getConnection()) {
-      DatabaseConnection databaseConnection = new JdbcConnection(connection);
-      Database database =
-          DatabaseFactory.getInstance().findCorrectDatabaseImplementation(databaseConnection);
-
-      applyDatabaseSettings(database);
-
-      Contexts contextsObj = (contexts == null) ? new Contexts() : new Contexts(contexts);
-      LabelExpression labelExpressionObj = new LabelExpression(labelExpression);
-
-      for (BundleCapability changeLogCapability : liquibaseChangeLogs) {
-        ResourceAccessor resourceAccessor = new EOSGiResourceAccessor(
-            changeLogCapability.getRevision().getBundle(), changeLogCapability.getAttributes());
-
-        Object resourceName = changeLogCapability.getAttributes()
-            .get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE);
-
-        Objects.requireNonNull(resourceName,
-            "'" + LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE
-                + "' attribute must be specified in '"
-                + LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG + "' capability: "
-                + changeLogCapability.toString());
-
-        Liquibase liquibase =
-            new Liquibase(String.valueOf(resourceName), resourceAccessor, database);
-
-        liquibase.update(tag, contextsObj, labelExpressionObj);
+    if (mode != null && !LiquibaseDataSourceConstants.MODE_UPDATE.equals(mode)) {
+      if (isMultiTenant()) {
+        throw new ConfigurationException(mode + " mode cannot be used in multi-tenant mode");
       }
+      if (LiquibaseDataSourceConstants.MODE_UPDATE_SQL.equals(mode)) {
+        if (updateSqlFile == null) {
+          throw new ConfigurationException("updateSqlFile must be defined in updateSQL mode");
+        }
+        if (Boolean.TRUE.equals(gatedDataSource)) {
+          throw new ConfigurationException("gatedDataSource cannot be used in updateSQL mode");
+        }
+      }
+    }
 
-      serviceRegistration = context.registerService(DataSource.class, dataSource,
-          new Hashtable<>(context.getProperties()));
+    deactivated = false;
+    componentContext = context;
+    servicePid = String.valueOf(context.getProperties().get(Constants.SERVICE_PID));
+    if (Boolean.TRUE.equals(gatedDataSource)) {
+      if (isMultiTenant()) {
+        throw new ConfigurationException(
+            "gatedDataSource cannot be used together with multi-tenant mode");
+      }
+      gate = new GatedDataSource(dataSource, gatedDataSourceTimeout);
+      migrationState = LiquibaseDataSourceConstants.MigrationState.PENDING;
+      serviceRegistrations.add(context.registerService(DataSource.class, gate,
+          createServiceProperties(context, null, migrationState)));
+      startAsyncMigration(context);
+    } else if (Boolean.TRUE.equals(asyncMigration)) {
+      startAsyncMigration(context);
+    } else {
+      migrate();
+      registerDataSource(context);
+    }
+  }
 
-    } catch (SQLException | LiquibaseException e) {
-      throw new RuntimeException(e);
+  /**
+   * Appends the executed changeSets to the history file if one is configured. A failure is only
+   * logged as the history must not break the migration.
+   */
+  private void appendHistory(final MigrationMetrics metrics) {
+    if (historyFile == null) {
+      return;
+    }
+    try {
+      new MigrationHistory(historyFile, historyMaxFileSize).append(metrics);
+    } catch (IOException | RuntimeException e) {
+      LogFactory.getLogger().warning("Could not append to migration history file: " + historyFile,
+          e);
     }
   }
 
@@ -295,14 +544,723 @@ public class LiquibaseDataSourceComponent {
     }
   }
 
+  private String computeFingerprint() {
+    ChangeLogFingerprint fingerprint = new ChangeLogFingerprint();
+    for (BundleCapability changeLogCapability : migrationChangeLogs) {
+      fingerprint.addCapability(changeLogCapability);
+    }
+    return fingerprint.addValues(contexts)
+        .addValue(labelExpression)
+        .addValue(tag)
+        .addValue(defaultCatalogName)
+        .addValue(defaultSchemaName)
+        .addValue(liquibaseCatalogName)
+        .addValue(liquibaseSchemaName)
+        .addValue(databaseChangeLogTableName)
+        .toHexString();
+  }
+
+  private Database createDatabase(final Connection connection) throws DatabaseException {
+    BatchingJdbcConnection databaseConnection = new BatchingJdbcConnection(connection);
+    long detectionStartNanos = System.nanoTime();
+    Database database =
+        DatabaseDialectCache.getInstance().createDatabase(dataSource, databaseConnection);
+    metricsCollector.addPhaseDuration(MigrationPhase.DATABASE_DETECTION, detectionStartNanos);
+
+    applyDatabaseSettings(database);
+    if (loadDataChunkSize > 0) {
+      StreamingLoadDataChange.register(database, loadDataChunkSize);
+    }
+    databaseConnection.enableBatching(database, batchSize);
+    return database;
+  }
+
+  private MigrationLockProvider createLockProvider(final Database database) {
+    boolean tableAware =
+        LiquibaseDataSourceConstants.LOCK_PROVIDER_ADVISORY_TABLE_AWARE.equals(lockProvider);
+    if (tableAware || LiquibaseDataSourceConstants.LOCK_PROVIDER_ADVISORY.equals(lockProvider)) {
+      if (AdvisoryMigrationLockProvider.supports(database)) {
+        return new AdvisoryMigrationLockProvider(database, database.getLiquibaseCatalogName()
+            + '.' + database.getLiquibaseSchemaName() + '.'
+            + database.getDatabaseChangeLogLockTableName(), tableAware);
+      }
+      LogFactory.getLogger().warning("Advisory locks are not supported on "
+          + database.getShortName() + " database, falling back to the changelog lock table.");
+    }
+    return new TableMigrationLockProvider(database);
+  }
+
+  private ResourceAccessor createResourceAccessor(final BundleCapability changeLogCapability) {
+    return new EOSGiResourceAccessor(
+        changeLogCapability.getRevision().getBundle(), changeLogCapability.getAttributes());
+  }
+
+  private Hashtable<String, Object> createServiceProperties(
+      final ComponentContext<LiquibaseDataSourceComponent> context, final String tenant,
+      final String migrationState) {
+    Hashtable<String, Object> properties = new Hashtable<>(context.getProperties());
+    properties.put(LiquibaseDataSourceConstants.SERVICE_PROP_MIGRATION_STATE, migrationState);
+    if (migrationMetrics != null) {
+      for (Map.Entry<String, Long> phaseDuration : migrationMetrics.getPhaseDurations()
+          .entrySet()) {
+        properties.put(LiquibaseDataSourceConstants.SERVICE_PROP_PHASE_MILLIS_PREFIX
+            + phaseDuration.getKey(), phaseDuration.getValue());
+      }
+      properties.put(LiquibaseDataSourceConstants.SERVICE_PROP_CHANGESETS_APPLIED,
+          migrationMetrics.getAppliedChangeSetCount());
+      properties.put(LiquibaseDataSourceConstants.SERVICE_PROP_CHANGESETS_SKIPPED,
+          migrationMetrics.getSkippedChangeSetCount());
+      properties.put(LiquibaseDataSourceConstants.SERVICE_PROP_CHANGESETS_PENDING,
+          migrationMetrics.getPendingChangeSetCount());
+      properties.put(LiquibaseDataSourceConstants.SERVICE_PROP_CHANGELOG_ROWS,
+          migrationMetrics.getChangeLogRowCount());
+    }
+    if (tenant != null) {
+      properties.put(LiquibaseDataSourceConstants.SERVICE_PROP_TENANT, tenant);
+    }
+    return properties;
+  }
+
   /**
-   * Unregisters the datasource service.
+   * Waits for the migration that might be in progress and unregisters the datasource service.
    */
   @Deactivate
   public void deactivate() {
-    if (serviceRegistration != null) {
+    synchronized (registrationMutex) {
+      deactivated = true;
+    }
+
+    if (migrationExecutor != null) {
+      stopAsyncMigration();
+    }
+    uninstallChangeReplacements();
+
+    if (gate != null) {
+      gate.fail(new IllegalStateException("Liquibase DataSource component is deactivated"));
+      gate = null;
+    }
+
+    for (ServiceRegistration<DataSource> serviceRegistration : serviceRegistrations) {
       serviceRegistration.unregister();
     }
+    serviceRegistrations.clear();
+    migratedTenants = null;
+    registeredTenants = null;
+    componentContext = null;
+  }
+
+  /**
+   * Lets the callers that wait on the gated DataSource fail and marks the registered service as
+   * failed.
+   */
+  private void failGate(final ComponentContext<LiquibaseDataSourceComponent> context,
+      final Throwable cause) {
+    synchronized (registrationMutex) {
+      if (deactivated || gate == null) {
+        return;
+      }
+      migrationState = LiquibaseDataSourceConstants.MigrationState.FAILED;
+      serviceRegistrations.get(0).setProperties(
+          createServiceProperties(context, null, migrationState));
+      gate.fail(cause);
+    }
+  }
+
+  /**
+   * Collects the changelogs that have pending changeSets with one read of the changelog table and
+   * without taking the changelog lock. The changelogs without pending changeSets do not have to
+   * be updated, e.g. after the bundle of only one capability changed.
+   */
+  private List<BundleCapability> findPendingChangeLogs(final PendingChangeSetCounter counter,
+      final Database database, final Contexts contextsObj,
+      final LabelExpression labelExpressionObj)
+      throws SQLException, LiquibaseException {
+    long checkStartNanos = System.nanoTime();
+    List<BundleCapability> pendingChangeLogs = new ArrayList<>();
+    int pendingCount = 0;
+    for (BundleCapability changeLogCapability : migrationChangeLogs) {
+      int changeLogPendingCount = counter.count(getChangeLogForPendingCheck(changeLogCapability,
+          database, contextsObj, labelExpressionObj), contextsObj, labelExpressionObj);
+      if (changeLogPendingCount > 0) {
+        pendingChangeLogs.add(changeLogCapability);
+        pendingCount += changeLogPendingCount;
+      }
+    }
+    metricsCollector.addPhaseDuration(MigrationPhase.PENDING_CHECK, checkStartNanos);
+    metricsCollector.addPendingChangeSetCount(pendingCount);
+    return pendingChangeLogs;
+  }
+
+  /**
+   * Returns the parsed changelog of the capability with its known checkSums from the shared cache
+   * or parses it if it is not cached yet. If the changelog uses parameters, the values of the
+   * database, e.g. <code>database.defaultSchemaName</code>, are substituted while parsing, so the
+   * connection and the schemas are part of the key. Otherwise the changelog is parsed only once
+   * for all schemas, e.g. for all tenants. The returned changelog must not be passed to
+   * Liquibase.
+   */
+  private CachedChangeLog getCachedChangeLog(final BundleCapability changeLogCapability,
+      final Database database, final Contexts contextsObj,
+      final LabelExpression labelExpressionObj) throws LiquibaseException {
+    Bundle bundle = changeLogCapability.getRevision().getBundle();
+    String resourceName = resolveResourceName(changeLogCapability);
+    String parametersKey = database.getShortName() + '|' + contextsObj + '|' + labelExpressionObj;
+    if (usesChangeLogParameters(bundle, resourceName)) {
+      parametersKey += '|' + database.getConnection().getURL() + '|'
+          + database.getDefaultCatalogName() + '|' + database.getDefaultSchemaName() + '|'
+          + database.getLiquibaseCatalogName() + '|' + database.getLiquibaseSchemaName();
+    }
+
+    ChangeLogCache changeLogCache = ChangeLogCache.getInstance();
+    CachedChangeLog changeLog = changeLogCache.get(bundle, resourceName, parametersKey);
+    if (changeLog == null) {
+      long parsingStartNanos = System.nanoTime();
+      changeLog = new CachedChangeLog(
+          parseChangeLog(changeLogCapability, database, contextsObj, labelExpressionObj));
+      metricsCollector.addPhaseDuration(MigrationPhase.CHANGELOG_PARSING, parsingStartNanos);
+      changeLogCache.put(bundle, resourceName, parametersKey, changeLog);
+    }
+    return changeLog;
+  }
+
+  /**
+   * Parses the changelog of the capability for Liquibase. It is parsed for every use, as
+   * Liquibase changes the state of the changelog and its changeSets while it runs, so a changelog
+   * cannot be shared between the updates of tenants or component instances.
+   */
+  private DatabaseChangeLog getChangeLog(final BundleCapability changeLogCapability,
+      final Database database, final Contexts contextsObj,
+      final LabelExpression labelExpressionObj) throws LiquibaseException {
+    long parsingStartNanos = System.nanoTime();
+    DatabaseChangeLog changeLog =
+        parseChangeLog(changeLogCapability, database, contextsObj, labelExpressionObj);
+    metricsCollector.addPhaseDuration(MigrationPhase.CHANGELOG_PARSING, parsingStartNanos);
+    return changeLog;
+  }
+
+  /**
+   * Returns the changelog that the pending changeSets are searched in. It is loaded from the
+   * precompiled index of the changelog if the bundle contains an up-to-date one, so the changelog
+   * is parsed only if there are pending changeSets. Otherwise the parsed changelog is returned.
+   */
+  private CachedChangeLog getChangeLogForPendingCheck(final BundleCapability changeLogCapability,
+      final Database database, final Contexts contextsObj,
+      final LabelExpression labelExpressionObj) throws LiquibaseException {
+    Bundle bundle = changeLogCapability.getRevision().getBundle();
+    String resourceName = resolveResourceName(changeLogCapability);
+    URL index = bundle.getEntry(resourceName + ChangeLogIndex.INDEX_SUFFIX);
+    if (index == null) {
+      return getCachedChangeLog(changeLogCapability, database, contextsObj, labelExpressionObj);
+    }
+
+    ChangeLogCache changeLogCache = ChangeLogCache.getInstance();
+    CachedChangeLog changeLog =
+        changeLogCache.get(bundle, resourceName, ChangeLogIndex.INDEX_SUFFIX);
+    if (changeLog == null) {
+      long loadingStartNanos = System.nanoTime();
+      changeLog = ChangeLogIndex.read(index, resourceName,
+          ChangeLogFingerprint.findSourceHash(bundle, resourceName));
+      metricsCollector.addPhaseDuration(MigrationPhase.CHANGELOG_INDEX_LOADING,
+          loadingStartNanos);
+      if (changeLog == null) {
+        return getCachedChangeLog(changeLogCapability, database, contextsObj,
+            labelExpressionObj);
+      }
+      // The index does not depend on the database, so it is cached with its own key
+      changeLogCache.put(bundle, resourceName, ChangeLogIndex.INDEX_SUFFIX, changeLog);
+    }
+    return changeLog;
+  }
+
+  /**
+   * Registers the replacements of the Liquibase changes that the current configuration enables
+   * before the changelogs are parsed and removes the ones that it does not enable anymore.
+   */
+  private void installChangeReplacements() {
+    boolean streamingLoadData = loadDataChunkSize > 0;
+    if (streamingLoadData != streamingLoadDataInstalled) {
+      if (streamingLoadData) {
+        StreamingLoadDataChange.install();
+      } else {
+        StreamingLoadDataChange.uninstall();
+      }
+      streamingLoadDataInstalled = streamingLoadData;
+    }
+
+    boolean onlineDdl = isOnlineDdlUsed();
+    if (onlineDdl != onlineDdlInstalled) {
+      if (onlineDdl) {
+        OnlineDdlSettings.install();
+      } else {
+        OnlineDdlSettings.uninstall();
+      }
+      onlineDdlInstalled = onlineDdl;
+    }
+  }
+
+  /**
+   * Runs the tasks on a thread pool of the specified size and waits until all of them finish. If
+   * any of the tasks fail, the first failure is thrown with the others added as suppressed.
+   */
+  private void invokeAll(final List<Callable<Void>> tasks, final int parallelism,
+      final String threadName) throws SQLException, LiquibaseException {
+    if (tasks.isEmpty()) {
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(parallelism, tasks.size())), new NamedThreadFactory(threadName));
+    try {
+      Throwable failure = null;
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+          } else {
+            failure.addSuppressed(e.getCause());
+          }
+        }
+      }
+      rethrowMigrationFailure(failure);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LiquibaseException("Interrupted while waiting for the migration tasks", e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private boolean isIndependent(final BundleCapability changeLogCapability) {
+    return Boolean.parseBoolean(String.valueOf(changeLogCapability.getAttributes()
+        .get(LiquibaseDataSourceConstants.CAPABILITY_ATTR_INDEPENDENT)));
+  }
+
+  private boolean isMultiTenant() {
+    return (tenantSchemaNames != null && tenantSchemaNames.length > 0)
+        || tenantSchemaQuery != null;
+  }
+
+  private boolean isOnlineDdl(final BundleCapability changeLogCapability) {
+    String onlineDdl = String.valueOf(changeLogCapability.getAttributes()
+        .get(LiquibaseDataSourceConstants.CAPABILITY_ATTR_ONLINE_DDL));
+    return LiquibaseDataSourceConstants.ONLINE_DDL_ALL.equals(onlineDdl)
+        || LiquibaseDataSourceConstants.ONLINE_DDL_NON_TRANSACTIONAL.equals(onlineDdl);
+  }
+
+  private boolean isOnlineDdlUsed() {
+    for (BundleCapability changeLogCapability : migrationChangeLogs) {
+      if (isOnlineDdl(changeLogCapability)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  private void migrate() {
+    migrationChangeLogs = liquibaseChangeLogs;
+    installChangeReplacements();
+    metricsCollector = new MigrationMetricsCollector();
+    if (statementTimeout > 0 || changeSetTimeout > 0 || migrationTimeout > 0) {
+      migrationWatchdog = new MigrationWatchdog("Liquibase migration watchdog " + servicePid,
+          statementTimeout, changeSetTimeout, migrationTimeout);
+    }
+    boolean successful = false;
+    try {
+      if (Boolean.TRUE.equals(coordinatedMigration)) {
+        MigrationCoordinator.getInstance().migrate(dataSource,
+            new MigrationCoordinator.Migration() {
+              @Override
+              public void migrate(final MigrationCoordinator.Session session)
+                  throws SQLException, LiquibaseException {
+                migrateOnConnection(watchConnection(session.getConnection()), session);
+              }
+            });
+      } else {
+        try (Connection connection = watchConnection(dataSource.getConnection())) {
+          migrateOnConnection(connection, null);
+        }
+      }
+      successful = true;
+      warmUp();
+    } catch (SQLException | LiquibaseException | RuntimeException e) {
+      String violation = (migrationWatchdog == null) ? null : migrationWatchdog.getViolation();
+      if (violation != null) {
+        throw new RuntimeException(violation, e);
+      }
+      if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      throw new RuntimeException(e);
+    } finally {
+      if (migrationWatchdog != null) {
+        migrationWatchdog.stop();
+        migrationWatchdog = null;
+      }
+      migrationMetrics = metricsCollector.toMigrationMetrics(servicePid, successful);
+      appendHistory(migrationMetrics);
+      notifyMetricsListeners(migrationMetrics);
+    }
+  }
+
+  /**
+   * Migrates the database again after the referenced capabilities changed while the component is
+   * active. Only the changelogs with pending changeSets are applied and the registered services
+   * stay available in the meantime. The migration always runs on the migration thread, so it does
+   * not block the thread that delivers the reference change and it cannot overlap with the one
+   * started by the activation. If the migration fails, the services are unregistered.
+   */
+  private void migrateChangedChangeLogs() {
+    final ComponentContext<LiquibaseDataSourceComponent> context = componentContext;
+    if (context == null) {
+      return;
+    }
+
+    Runnable migration = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (registrationMutex) {
+          if (deactivated) {
+            return;
+          }
+        }
+        publishMigrationState(LiquibaseDataSourceConstants.MigrationState.RUNNING);
+        try {
+          migrate();
+          refreshRegistrations(context);
+        } catch (RuntimeException e) {
+          LogFactory.getLogger().severe("Liquibase migration of the changed changelogs failed,"
+              + " unregistering the DataSource services: " + servicePid, e);
+          unregisterDataSources();
+        }
+      }
+    };
+
+    if (migrationExecutor == null) {
+      migrationExecutor = Executors.newSingleThreadExecutor(
+          new NamedThreadFactory("Liquibase migration - " + servicePid));
+    }
+    // Waits behind the migration that might still be running on the migration thread
+    publishMigrationState(LiquibaseDataSourceConstants.MigrationState.PENDING);
+    try {
+      migrationExecutor.submit(migration);
+    } catch (RejectedExecutionException e) {
+      LogFactory.getLogger().debug("Component is deactivated, changed changelogs are ignored", e);
+    }
+  }
+
+  /**
+   * Applies the referenced changelogs that have pending changeSets on the database unless the
+   * fingerprint shows that it is up-to-date.
+   */
+  private void migrateDatabase(final Connection connection, final Database database,
+      final MigrationCoordinator.Session session, final String fingerprint,
+      final Contexts contextsObj, final LabelExpression labelExpressionObj)
+      throws SQLException, LiquibaseException {
+
+    ChangeLogFingerprintStore fingerprintStore =
+        new ChangeLogFingerprintStore(connection, database, fingerprintTableName);
+    if (!Boolean.TRUE.equals(forceFullCheck) && fingerprintStore.isUpToDate(fingerprint)) {
+      metricsCollector.addChangeLogRowCount(fingerprintStore.getLastChangeLogRowCount());
+      return;
+    }
+
+    List<BundleCapability> changeLogs = Arrays.asList(migrationChangeLogs);
+    // The changeSets that run always would be skipped if the fingerprint was up-to-date, so it
+    // is stored only if the pending check did not find any. Without the check it is not known.
+    boolean fingerprintStorable = false;
+    if (!Boolean.TRUE.equals(forceFullCheck)) {
+      PendingChangeSetCounter counter = new PendingChangeSetCounter(connection, database);
+      changeLogs = findPendingChangeLogs(counter, database, contextsObj, labelExpressionObj);
+      fingerprintStorable = !counter.isAlwaysRunFound();
+      if (changeLogs.isEmpty()) {
+        // Nothing to do, the lock is not needed
+        storeFingerprint(fingerprintStore, fingerprint);
+        metricsCollector.addChangeLogRowCount(fingerprintStore.getLastChangeLogRowCount());
+        return;
+      }
+    }
+
+    MigrationLock lock =
+        acquireMigrationLock(database, session, fingerprintStore, fingerprint);
+    if (lock == null) {
+      metricsCollector.addChangeLogRowCount(fingerprintStore.getLastChangeLogRowCount());
+      return;
+    }
+
+    ExternalLockService.register(database);
+    try {
+      if (migrationParallelism > 1) {
+        updateChangeLogsInParallel(database, changeLogs, contextsObj, labelExpressionObj);
+      } else {
+        for (BundleCapability changeLogCapability : changeLogs) {
+          updateChangeLog(changeLogCapability, database, contextsObj, labelExpressionObj);
+        }
+      }
+
+      if (fingerprintStorable) {
+        // Stored before releasing the lock so the followers can see it
+        storeFingerprint(fingerprintStore, fingerprint);
+        metricsCollector.addChangeLogRowCount(fingerprintStore.getLastChangeLogRowCount());
+      } else {
+        metricsCollector.addChangeLogRowCount(fingerprintStore.countChangeLogRows());
+      }
+    } finally {
+      ExternalLockService.unregister(database);
+      if (session == null) {
+        // Otherwise the session releases the lock at the end of the batch
+        lock.release();
+      }
+    }
+  }
+
+  /**
+   * Runs the migration of the configured mode on the connection.
+   *
+   * @param session
+   *          The session of a coordinated migration or <code>null</code> if the connection is
+   *          used by this component only.
+   */
+  private void migrateOnConnection(final Connection connection,
+      final MigrationCoordinator.Session session) throws SQLException, LiquibaseException {
+    Database database = createDatabase(connection);
+
+    Contexts contextsObj = (contexts == null) ? new Contexts() : new Contexts(contexts);
+    LabelExpression labelExpressionObj = new LabelExpression(labelExpression);
+
+    if (isMultiTenant()) {
+      migrateTenants(connection, contextsObj, labelExpressionObj);
+    } else if (LiquibaseDataSourceConstants.MODE_UPDATE_SQL.equals(mode)) {
+      writeUpdateSql(database, contextsObj, labelExpressionObj);
+    } else if (LiquibaseDataSourceConstants.MODE_VALIDATE_ONLY.equals(mode)) {
+      validateDatabase(connection, database, computeFingerprint(), contextsObj,
+          labelExpressionObj);
+    } else {
+      migrateDatabase(connection, database, session, computeFingerprint(), contextsObj,
+          labelExpressionObj);
+    }
+  }
+
+  /**
+   * Applies the changelogs on the schema of a tenant with its own connection. Both the default and
+   * the Liquibase schema of the database are set to the schema of the tenant.
+   */
+  private void migrateTenant(final String tenant, final String fingerprint,
+      final Contexts contextsObj, final LabelExpression labelExpressionObj)
+      throws SQLException, LiquibaseException {
+    try (Connection connection = watchConnection(dataSource.getConnection())) {
+      Database database = createDatabase(connection);
+      database.setDefaultSchemaName(tenant);
+      database.setLiquibaseSchemaName(tenant);
+
+      String tenantFingerprint = new ChangeLogFingerprint()
+          .addValue(fingerprint)
+          .addValue(tenant)
+          .toHexString();
+
+      migrateDatabase(connection, database, null, tenantFingerprint, contextsObj,
+          labelExpressionObj);
+    }
+  }
+
+  /**
+   * Applies the changelogs on the schema of every tenant, using at most as many threads as the
+   * tenant parallelism. The pending changeSets are searched in changelogs that are parsed once for
+   * all tenants, unless they use parameters that might depend on the schema of the tenant.
+   */
+  private void migrateTenants(final Connection connection,
+      final Contexts contextsObj, final LabelExpression labelExpressionObj)
+      throws SQLException, LiquibaseException {
+
+    List<String> tenants = resolveTenants(connection);
+    final String fingerprint = computeFingerprint();
+
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (final String tenant : tenants) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          migrateTenant(tenant, fingerprint, contextsObj, labelExpressionObj);
+          return null;
+        }
+      });
+    }
+
+    invokeAll(tasks, tenantParallelism, "Liquibase tenant migration");
+    migratedTenants = tenants;
+  }
+
+  private void notifyMetricsListeners(final MigrationMetrics metrics) {
+    MigrationMetricsListener[] listeners = metricsListeners;
+    if (listeners == null) {
+      return;
+    }
+    for (MigrationMetricsListener listener : listeners) {
+      try {
+        listener.migrationFinished(metrics);
+      } catch (RuntimeException e) {
+        LogFactory.getLogger().warning("Migration metrics listener failed: " + listener, e);
+      }
+    }
+  }
+
+  private DatabaseChangeLog parseChangeLog(final BundleCapability changeLogCapability,
+      final Database database, final Contexts contextsObj,
+      final LabelExpression labelExpressionObj) throws LiquibaseException {
+
+    ResourceAccessor resourceAccessor = createResourceAccessor(changeLogCapability);
+    String resourceName = resolveResourceName(changeLogCapability);
+
+    ChangeLogParameters changeLogParameters = new ChangeLogParameters(database);
+    changeLogParameters.setContexts(contextsObj);
+    changeLogParameters.setLabels(labelExpressionObj);
+
+    return ChangeLogParserFactory.getInstance().getParser(resourceName, resourceAccessor)
+        .parse(resourceName, changeLogParameters, resourceAccessor);
+  }
+
+  /**
+   * Sets the state of the migration and publishes it in the properties of the registered
+   * services.
+   */
+  private void publishMigrationState(final String state) {
+    synchronized (registrationMutex) {
+      migrationState = state;
+      update();
+    }
+  }
+
+  /**
+   * Updates the properties of the registered services after the migration of changed changelogs
+   * and registers the services that are missing, e.g. for new tenants or if the first migration
+   * failed in asynchronous mode. A gate that failed earlier is opened.
+   */
+  private void refreshRegistrations(
+      final ComponentContext<LiquibaseDataSourceComponent> context) {
+    synchronized (registrationMutex) {
+      if (deactivated) {
+        return;
+      }
+      if (serviceRegistrations.isEmpty() || gate != null) {
+        registerDataSource(context);
+        return;
+      }
+      migrationState = LiquibaseDataSourceConstants.MigrationState.COMPLETED;
+      if (registeredTenants != null && migratedTenants != null) {
+        for (String tenant : migratedTenants) {
+          if (!registeredTenants.contains(tenant)) {
+            registeredTenants.add(tenant);
+            serviceRegistrations.add(context.registerService(DataSource.class, dataSource,
+                createServiceProperties(context, tenant, migrationState)));
+          }
+        }
+      }
+      update();
+    }
+  }
+
+  private void registerDataSource(final ComponentContext<LiquibaseDataSourceComponent> context) {
+    synchronized (registrationMutex) {
+      if (deactivated || LiquibaseDataSourceConstants.MODE_UPDATE_SQL.equals(mode)) {
+        return;
+      }
+      migrationState = LiquibaseDataSourceConstants.MigrationState.COMPLETED;
+      if (gate != null) {
+        serviceRegistrations.get(0).setProperties(
+            createServiceProperties(context, null, migrationState));
+        gate.open();
+      } else if (migratedTenants == null) {
+        serviceRegistrations.add(context.registerService(DataSource.class, dataSource,
+            createServiceProperties(context, null, migrationState)));
+      } else {
+        registeredTenants = new ArrayList<>(migratedTenants);
+        for (String tenant : registeredTenants) {
+          serviceRegistrations.add(context.registerService(DataSource.class, dataSource,
+              createServiceProperties(context, tenant, migrationState)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Enables online DDL for the update of the changelog if the capability opted in.
+   */
+  private void registerOnlineDdl(final BundleCapability changeLogCapability,
+      final Database database) {
+    String onlineDdl = String.valueOf(changeLogCapability.getAttributes()
+        .get(LiquibaseDataSourceConstants.CAPABILITY_ATTR_ONLINE_DDL));
+    boolean allChangeSets = LiquibaseDataSourceConstants.ONLINE_DDL_ALL.equals(onlineDdl);
+    if (allChangeSets
+        || LiquibaseDataSourceConstants.ONLINE_DDL_NON_TRANSACTIONAL.equals(onlineDdl)) {
+      OnlineDdlSettings.register(database,
+          new OnlineDdlSettings(allChangeSets, onlineDdlChunkSize, onlineDdlThrottle));
+    }
+  }
+
+  private String resolveResourceName(final BundleCapability changeLogCapability) {
+    Object resourceName = changeLogCapability.getAttributes()
+        .get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE);
+
+    Objects.requireNonNull(resourceName,
+        "'" + LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE
+            + "' attribute must be specified in '"
+            + LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG + "' capability: "
+            + changeLogCapability.toString());
+
+    return String.valueOf(resourceName);
+  }
+
+  /**
+   * Collects the schema names of the tenants from the configuration and the result of the tenant
+   * query.
+   */
+  private List<String> resolveTenants(final Connection connection) throws SQLException {
+    Set<String> tenants = new LinkedHashSet<>();
+    if (tenantSchemaNames != null) {
+      tenants.addAll(Arrays.asList(tenantSchemaNames));
+    }
+    if (tenantSchemaQuery != null) {
+      try (Statement statement = connection.createStatement();
+          ResultSet resultSet = statement.executeQuery(tenantSchemaQuery)) {
+        while (resultSet.next()) {
+          tenants.add(resultSet.getString(1));
+        }
+      }
+    }
+    return new ArrayList<>(tenants);
+  }
+
+  private void rethrowMigrationFailure(final Throwable failure)
+      throws SQLException, LiquibaseException {
+    if (failure == null) {
+      return;
+    }
+    if (failure instanceof SQLException) {
+      throw (SQLException) failure;
+    }
+    if (failure instanceof LiquibaseException) {
+      throw (LiquibaseException) failure;
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+    throw new LiquibaseException(failure);
+  }
+
+  @BooleanAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_ASYNC_MIGRATION,
+      dynamic = true,
+      optional = true, priority = P_ASYNC_MIGRATION, label = "Asynchronous migration",
+      description = "If true, the changelogs are applied on a dedicated thread, the component"
+          + " activation returns immediately and the DataSource service is registered when the"
+          + " migration finished successfully. The deactivation waits for a running migration"
+          + " as long as the migration timeout or one minute if there is no timeout, then it"
+          + " interrupts the migration thread and returns.")
+  public void setAsyncMigration(final Boolean asyncMigration) {
+    this.asyncMigration = asyncMigration;
   }
 
   @BooleanAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_AUTO_COMMIT, optional = true,
@@ -312,6 +1270,19 @@ public class LiquibaseDataSourceComponent {
     this.autoCommit = autoCommit;
   }
 
+  @IntegerAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_BATCH_SIZE,
+      dynamic = true,
+      defaultValue = LiquibaseDataSourceConstants.DEFAULT_BATCH_SIZE, priority = P_BATCH_SIZE,
+      label = "Batch size",
+      description = "The maximum number of insert statements that are sent to the database in one"
+          + " JDBC batch. The statements of a changeSet are always executed before its"
+          + " transaction is committed and before any other statement, so the transaction"
+          + " boundaries and the auto commit setting are kept. Batching is disabled if the value"
+          + " is 1 or less.")
+  public void setBatchSize(final int batchSize) {
+    this.batchSize = batchSize;
+  }
+
   @BooleanAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_CAN_CACHE_LIQUIBASE_TABLE_INFO,
       optional = true, priority = P_CAN_CACHE_LIQUIBASE_TABLE_INFO,
       label = "Can cache liquibase table info",
@@ -320,6 +1291,16 @@ public class LiquibaseDataSourceComponent {
     this.canCacheLiquibaseTableInfo = canCacheLiquibaseTableInfo;
   }
 
+  @LongAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_CHANGE_SET_TIMEOUT,
+      dynamic = true,
+      defaultValue = 0, priority = P_CHANGE_SET_TIMEOUT, label = "ChangeSet timeout (ms)",
+      description = "The time budget of a single changeSet. If a changeSet runs longer, the"
+          + " running statements are cancelled and the migration fails with the name and run"
+          + " time of the changeSet. Zero means no budget.")
+  public void setChangeSetTimeout(final long changeSetTimeout) {
+    this.changeSetTimeout = changeSetTimeout;
+  }
+
   @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_CONTEXTS, optional = true,
       priority = P_CONTEXTS, label = "Contexts",
       description = "When you run the migrator though any of the available methods, you can pass"
@@ -329,6 +1310,17 @@ public class LiquibaseDataSourceComponent {
     this.contexts = contexts;
   }
 
+  @BooleanAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_COORDINATED_MIGRATION,
+      dynamic = true,
+      optional = true, priority = P_COORDINATED_MIGRATION, label = "Coordinated migration",
+      description = "If true, the migration runs together with the coordinated migrations of the"
+          + " other components that reference the same DataSource service. The migrations that"
+          + " are started while another one is running are executed one after the other on a"
+          + " single connection and the changelog lock is acquired only once for all of them.")
+  public void setCoordinatedMigration(final Boolean coordinatedMigration) {
+    this.coordinatedMigration = coordinatedMigration;
+  }
+
   @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_CURRENT_DATETIME_FUNCTION,
       optional = true,
       priority = P_CURRENT_DATETIME_FUNCTION, label = "Current datetime function",
@@ -388,6 +1380,67 @@ public class LiquibaseDataSourceComponent {
     this.defaultSchemaName = defaultSchemaName;
   }
 
+  @StringAttribute(
+      attributeId = LiquibaseDataSourceConstants.ATTR_FINGERPRINT_TABLE_NAME,
+      defaultValue = LiquibaseDataSourceConstants.DEFAULT_FINGERPRINT_TABLE_NAME,
+      priority = P_FINGERPRINT_TABLE_NAME,
+      label = "Fingerprint table name",
+      description = "The name of the table where the fingerprints of the successful migrations"
+          + " are stored. The table is created next to the database changelog table.")
+  public void setFingerprintTableName(final String fingerprintTableName) {
+    this.fingerprintTableName = fingerprintTableName;
+  }
+
+  @BooleanAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_FORCE_FULL_CHECK,
+      dynamic = true,
+      optional = true, priority = P_FORCE_FULL_CHECK, label = "Force full check",
+      description = "By default the changelogs are not parsed if their fingerprint and the row"
+          + " count of the database changelog table are the same as after the last successful"
+          + " migration. The fingerprint is not stored if the changelogs have changeSets with"
+          + " runAlways, so those run at every activation. If true, Liquibase update is called"
+          + " in every case.")
+  public void setForceFullCheck(final Boolean forceFullCheck) {
+    this.forceFullCheck = forceFullCheck;
+  }
+
+  @BooleanAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_GATED_DATA_SOURCE,
+      optional = true, priority = P_GATED_DATA_SOURCE, label = "Gated DataSource",
+      description = "If true, a DataSource service is registered right after the activation and"
+          + " the changelogs are applied on a dedicated thread. Getting a connection from the"
+          + " service waits until the migration finished. Cannot be used in multi-tenant mode.")
+  public void setGatedDataSource(final Boolean gatedDataSource) {
+    this.gatedDataSource = gatedDataSource;
+  }
+
+  @LongAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_GATED_DATA_SOURCE_TIMEOUT,
+      defaultValue = LiquibaseDataSourceConstants.DEFAULT_GATED_DATA_SOURCE_TIMEOUT,
+      priority = P_GATED_DATA_SOURCE_TIMEOUT, label = "Gated DataSource timeout (ms)",
+      description = "The maximum time a getConnection call of the gated DataSource waits for the"
+          + " migration. An SQLTimeoutException is thrown if the migration is still running.")
+  public void setGatedDataSourceTimeout(final long gatedDataSourceTimeout) {
+    this.gatedDataSourceTimeout = gatedDataSourceTimeout;
+  }
+
+  @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_HISTORY_FILE,
+      dynamic = true,
+      optional = true, priority = P_HISTORY_FILE, label = "History file",
+      description = "If defined, the executed changeSets of every migration run are appended to"
+          + " this file as JSON lines with their capability, duration, statement count and"
+          + " outcome. The slowest changeSets can be listed with the MigrationHistory class.")
+  public void setHistoryFile(final String historyFile) {
+    this.historyFile = historyFile;
+  }
+
+  @LongAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_HISTORY_MAX_FILE_SIZE,
+      dynamic = true,
+      defaultValue = LiquibaseDataSourceConstants.DEFAULT_HISTORY_MAX_FILE_SIZE,
+      priority = P_HISTORY_MAX_FILE_SIZE, label = "History max file size (bytes)",
+      description = "The size the history file may grow to. When it is reached, the file is"
+          + " renamed with a .1 suffix, replacing the previous one, and a new file is started.")
+  public void setHistoryMaxFileSize(final long historyMaxFileSize) {
+    this.historyMaxFileSize = historyMaxFileSize;
+  }
+
   @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_LABEL_EXPRESSION,
       optional = true, priority = P_LABEL_EXPRESSION, label = "Label expression",
       description = ". In your changeSet you can only specify a simple list of \"labels\" that"
@@ -412,12 +1465,20 @@ public class LiquibaseDataSourceComponent {
   @BundleCapabilityRef(namespace = LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG,
       referenceId = LiquibaseDataSourceConstants.ReferenceConstants.LIQUIBASE_CHANGELOG,
       attributeId = LiquibaseDataSourceConstants.ATTR_LIQUIBASE_CHANGELOG,
-      optional = false, attributePriority = P_REF_LIQUIBASE_CHANGELOGS,
+      optional = false, dynamic = true, attributePriority = P_REF_LIQUIBASE_CHANGELOGS,
       label = "Liquibase Changelog Capability",
       description = "Filter expression that points to a liquibase.changelog Bundle Capability."
-          + " E.g.: (" + LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG + "=mySchema)")
+          + " E.g.: (" + LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG + "=mySchema)."
+          + " If the capabilities change while the component is active, e.g. a bundle is"
+          + " updated, the changelogs with pending changeSets are applied on the migration"
+          + " thread without unregistering the DataSource service. If that migration fails, the"
+          + " service is unregistered until a later change is applied successfully.")
   public void setLiquibaseChangeLogCapabilities(final BundleCapability[] liquibaseSchemas) {
+    BundleCapability[] previousChangeLogs = this.liquibaseChangeLogs;
     this.liquibaseChangeLogs = liquibaseSchemas;
+    if (previousChangeLogs != null && !Arrays.equals(previousChangeLogs, liquibaseSchemas)) {
+      migrateChangedChangeLogs();
+    }
   }
 
   @StringAttribute(
@@ -440,6 +1501,130 @@ public class LiquibaseDataSourceComponent {
     this.liquibaseTableSpaceName = liquibaseTableSpaceName;
   }
 
+  @IntegerAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_LOAD_DATA_CHUNK_SIZE,
+      dynamic = true,
+      defaultValue = 0, priority = P_LOAD_DATA_CHUNK_SIZE, label = "LoadData chunk size",
+      description = "If greater than zero, the rows of loadData changes are inserted while the CSV"
+          + " file is read, in JDBC batches of this size, so large files do not have to fit into"
+          + " the heap. Only columns with STRING, NUMERIC, BOOLEAN, DATE or SKIP type are"
+          + " streamed, other changes are processed by Liquibase as usual.")
+  public void setLoadDataChunkSize(final int loadDataChunkSize) {
+    this.loadDataChunkSize = loadDataChunkSize;
+  }
+
+  @BooleanAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_LOCK_FOLLOWER_MODE,
+      dynamic = true,
+      optional = true, priority = P_LOCK_FOLLOWER_MODE, label = "Lock follower mode",
+      description = "If true and the changelog lock is held by someone else, the component waits"
+          + " until the lock is released and checks whether the fingerprint stored by the lock"
+          + " owner matches its own. If it does, the DataSource is registered without parsing and"
+          + " applying the changelogs.")
+  public void setLockFollowerMode(final Boolean lockFollowerMode) {
+    this.lockFollowerMode = lockFollowerMode;
+  }
+
+  @LongAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_LOCK_INITIAL_BACKOFF,
+      dynamic = true,
+      defaultValue = LiquibaseDataSourceConstants.DEFAULT_LOCK_INITIAL_BACKOFF,
+      priority = P_LOCK_INITIAL_BACKOFF, label = "Lock initial backoff (ms)",
+      description = "The time to wait before polling the changelog lock again for the first time."
+          + " The wait time is doubled after every attempt with a random jitter.")
+  public void setLockInitialBackoff(final long lockInitialBackoff) {
+    this.lockInitialBackoff = lockInitialBackoff;
+  }
+
+  @LongAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_LOCK_MAX_BACKOFF,
+      dynamic = true,
+      defaultValue = LiquibaseDataSourceConstants.DEFAULT_LOCK_MAX_BACKOFF,
+      priority = P_LOCK_MAX_BACKOFF, label = "Lock max backoff (ms)",
+      description = "The maximum time to wait between two polls of the changelog lock.")
+  public void setLockMaxBackoff(final long lockMaxBackoff) {
+    this.lockMaxBackoff = lockMaxBackoff;
+  }
+
+  @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_LOCK_PROVIDER,
+      dynamic = true,
+      defaultValue = LiquibaseDataSourceConstants.LOCK_PROVIDER_TABLE,
+      options = {
+          @StringAttributeOption(label = "Changelog lock table",
+              value = LiquibaseDataSourceConstants.LOCK_PROVIDER_TABLE),
+          @StringAttributeOption(label = "Advisory lock",
+              value = LiquibaseDataSourceConstants.LOCK_PROVIDER_ADVISORY),
+          @StringAttributeOption(label = "Advisory lock respecting the changelog lock table",
+              value = LiquibaseDataSourceConstants.LOCK_PROVIDER_ADVISORY_TABLE_AWARE) },
+      priority = P_LOCK_PROVIDER, label = "Lock provider",
+      description = "The lock that prevents concurrent migrations of the same schema. Advisory"
+          + " locks are supported on PostgreSQL, MySQL and MariaDB. They are acquired and"
+          + " released with one round trip and they disappear with the connection. On other"
+          + " databases the changelog lock table is used. All nodes that migrate the same schema"
+          + " must use the same provider, as the nodes that use the table do not see the advisory"
+          + " locks. During a rolling upgrade from the table, the table aware advisory lock can"
+          + " be used. It is acquired only if the changelog lock table is not locked, so a stale"
+          + " lock in the table must be released by hand.")
+  public void setLockProvider(final String lockProvider) {
+    this.lockProvider = lockProvider;
+  }
+
+  @LongAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_LOCK_WAIT_TIMEOUT,
+      dynamic = true,
+      defaultValue = LiquibaseDataSourceConstants.DEFAULT_LOCK_WAIT_TIMEOUT,
+      priority = P_LOCK_WAIT_TIMEOUT, label = "Lock wait timeout (ms)",
+      description = "The maximum time to wait for the changelog lock before the migration fails.")
+  public void setLockWaitTimeout(final long lockWaitTimeout) {
+    this.lockWaitTimeout = lockWaitTimeout;
+  }
+
+  @ServiceRef(referenceId = LiquibaseDataSourceConstants.ReferenceConstants.METRICS_LISTENER,
+      attributeId = LiquibaseDataSourceConstants.ATTR_METRICS_LISTENER_TARGET,
+      defaultValue = "", optional = true, dynamic = true,
+      attributePriority = P_METRICS_LISTENER, label = "Metrics listeners",
+      description = "OSGi filter expression to reference the MigrationMetricsListener services"
+          + " that are notified after each migration run.")
+  public void setMetricsListeners(final MigrationMetricsListener[] metricsListeners) {
+    this.metricsListeners = metricsListeners;
+  }
+
+  @IntegerAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_MIGRATION_PARALLELISM,
+      dynamic = true,
+      defaultValue = 1, priority = P_MIGRATION_PARALLELISM, label = "Migration parallelism",
+      description = "The maximum number of changelogs that are applied at the same time. If"
+          + " greater than one, the changelogs whose capability has the '"
+          + LiquibaseDataSourceConstants.CAPABILITY_ATTR_INDEPENDENT + ":Boolean=true'"
+          + " attribute are applied in parallel, each on its own database connection. The other"
+          + " changelogs are applied one after the other in the order of the references.")
+  public void setMigrationParallelism(final int migrationParallelism) {
+    this.migrationParallelism = migrationParallelism;
+  }
+
+  @LongAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_MIGRATION_TIMEOUT,
+      dynamic = true,
+      defaultValue = 0, priority = P_MIGRATION_TIMEOUT, label = "Migration timeout (ms)",
+      description = "The time budget of the whole migration including the wait for the"
+          + " changelog lock. If it is exceeded, the running statements are cancelled and the"
+          + " activation fails. The connections are aborted if the migration does not stop"
+          + " after the cancellation. Zero means no budget.")
+  public void setMigrationTimeout(final long migrationTimeout) {
+    this.migrationTimeout = migrationTimeout;
+  }
+
+  @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_MODE,
+      defaultValue = LiquibaseDataSourceConstants.MODE_UPDATE,
+      options = {
+          @StringAttributeOption(label = "Update",
+              value = LiquibaseDataSourceConstants.MODE_UPDATE),
+          @StringAttributeOption(label = "Write update SQL",
+              value = LiquibaseDataSourceConstants.MODE_UPDATE_SQL),
+          @StringAttributeOption(label = "Validate only",
+              value = LiquibaseDataSourceConstants.MODE_VALIDATE_ONLY) },
+      priority = P_MODE, label = "Mode",
+      description = "In update mode the pending changeSets are applied. In updateSQL mode the SQL"
+          + " of the pending changeSets is written into the update SQL file, nothing is changed in"
+          + " the database and no DataSource is registered. In validateOnly mode the changelogs"
+          + " are validated and the DataSource is registered only if no changeSet is pending.")
+  public void setMode(final String mode) {
+    this.mode = mode;
+  }
+
   @StringAttribute(
       attributeId = LiquibaseDataSourceConstants.ATTR_OBJECT_QUOTING_STRATEGY,
       optional = true,
@@ -454,6 +1639,29 @@ public class LiquibaseDataSourceComponent {
     this.objectQuotingStrategy = objectQuotingStrategy;
   }
 
+  @IntegerAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_ONLINE_DDL_CHUNK_SIZE,
+      dynamic = true,
+      defaultValue = LiquibaseDataSourceConstants.DEFAULT_ONLINE_DDL_CHUNK_SIZE,
+      priority = P_ONLINE_DDL_CHUNK_SIZE, label = "Online DDL chunk size",
+      description = "The maximum number of rows that are filled in one transaction when a column"
+          + " is added with online DDL. Online DDL is enabled by the '"
+          + LiquibaseDataSourceConstants.CAPABILITY_ATTR_ONLINE_DDL + "' attribute of the"
+          + " capability: 'true' applies all changeSets online, 'nonTransactional' only the"
+          + " changeSets with runInTransaction=\"false\". Online changes commit in the middle of"
+          + " the changeSet, so such a changeSet should contain only one change.")
+  public void setOnlineDdlChunkSize(final int onlineDdlChunkSize) {
+    this.onlineDdlChunkSize = onlineDdlChunkSize;
+  }
+
+  @LongAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_ONLINE_DDL_THROTTLE,
+      dynamic = true,
+      defaultValue = 0, priority = P_ONLINE_DDL_THROTTLE, label = "Online DDL throttle (ms)",
+      description = "The time to wait after each chunk of rows that is filled with online DDL, so"
+          + " the database can serve the production traffic in the meantime.")
+  public void setOnlineDdlThrottle(final long onlineDdlThrottle) {
+    this.onlineDdlThrottle = onlineDdlThrottle;
+  }
+
   @BooleanAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_OUTPUT_DEFAULT_CATALOG,
       optional = true, priority = P_OUTPUT_DEFAULT_CATALOG,
       label = "Output default catalog",
@@ -470,10 +1678,418 @@ public class LiquibaseDataSourceComponent {
     this.outputDefaultSchema = outputDefaultSchema;
   }
 
+  @LongAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_STATEMENT_TIMEOUT,
+      dynamic = true,
+      defaultValue = 0, priority = P_STATEMENT_TIMEOUT, label = "Statement timeout (ms)",
+      description = "The query timeout that is set on every statement of the migration. JDBC"
+          + " supports whole seconds only, so the value is rounded up. Zero means no timeout.")
+  public void setStatementTimeout(final long statementTimeout) {
+    this.statementTimeout = statementTimeout;
+  }
+
   @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_TAG, optional = true,
       priority = P_TAG, label = "Tag", description = "Tag of the database for future rollback.")
   public void setTag(final String tag) {
     this.tag = tag;
   }
 
+  @IntegerAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_TENANT_PARALLELISM,
+      dynamic = true,
+      defaultValue = LiquibaseDataSourceConstants.DEFAULT_TENANT_PARALLELISM,
+      priority = P_TENANT_PARALLELISM, label = "Tenant parallelism",
+      description = "The maximum number of tenant schemas that are migrated at the same time.")
+  public void setTenantParallelism(final int tenantParallelism) {
+    this.tenantParallelism = tenantParallelism;
+  }
+
+  @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_TENANT_SCHEMA_NAMES,
+      optional = true, priority = P_TENANT_SCHEMA_NAMES, label = "Tenant schemas",
+      description = "If specified, the changelogs are applied on each listed schema. Both the"
+          + " default and the Liquibase schema are set to the schema of the tenant and a"
+          + " DataSource service is registered for every tenant with the '"
+          + LiquibaseDataSourceConstants.SERVICE_PROP_TENANT + "' service property.")
+  public void setTenantSchemaNames(final String[] tenantSchemaNames) {
+    this.tenantSchemaNames = tenantSchemaNames;
+  }
+
+  @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_TENANT_SCHEMA_QUERY,
+      optional = true, priority = P_TENANT_SCHEMA_QUERY, label = "Tenant schema query",
+      description = "SQL query whose first column contains the schema names of the tenants. The"
+          + " result is merged with the list of tenant schemas.")
+  public void setTenantSchemaQuery(final String tenantSchemaQuery) {
+    this.tenantSchemaQuery = tenantSchemaQuery;
+  }
+
+  @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_UPDATE_SQL_FILE,
+      optional = true, priority = P_UPDATE_SQL_FILE, label = "Update SQL file",
+      description = "The file that the SQL script is written into in updateSQL mode. The file is"
+          + " overwritten at every activation.")
+  public void setUpdateSqlFile(final String updateSqlFile) {
+    this.updateSqlFile = updateSqlFile;
+  }
+
+  @IntegerAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_WARM_UP_CONNECTIONS,
+      dynamic = true,
+      defaultValue = 0, priority = P_WARM_UP_CONNECTIONS, label = "Warm-up connections",
+      description = "The number of connections that are opened in parallel after the migration"
+          + " and before the DataSource is registered. Each connection runs the warm-up queries"
+          + " and all of them are kept open until every one is opened, but at most for 10"
+          + " seconds, so the connection pool is filled. The value should not be greater than"
+          + " the maximum size of the pool. Zero disables the warm-up.")
+  public void setWarmUpConnections(final int warmUpConnections) {
+    this.warmUpConnections = warmUpConnections;
+  }
+
+  @StringAttribute(attributeId = LiquibaseDataSourceConstants.ATTR_WARM_UP_QUERIES,
+      dynamic = true,
+      optional = true, priority = P_WARM_UP_QUERIES, label = "Warm-up queries",
+      description = "The SQL statements that each warm-up connection runs, e.g. queries that"
+          + " touch the key tables and indexes. All rows of the results are read. A failing"
+          + " query is logged only.")
+  public void setWarmUpQueries(final String[] warmUpQueries) {
+    this.warmUpQueries = warmUpQueries;
+  }
+
+  private void startAsyncMigration(
+      final ComponentContext<LiquibaseDataSourceComponent> context) {
+    final String threadName =
+        "Liquibase migration - " + context.getProperties().get(Constants.SERVICE_PID);
+
+    migrationExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory(threadName));
+
+    migrationFuture = migrationExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        publishMigrationState(LiquibaseDataSourceConstants.MigrationState.RUNNING);
+        try {
+          migrate();
+          registerDataSource(context);
+        } catch (RuntimeException e) {
+          LogFactory.getLogger().severe("Asynchronous Liquibase migration failed: " + threadName,
+              e);
+          failGate(context, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Cancels the migration if it has not been started yet, otherwise waits until it finishes. A
+   * running migration is not interrupted as that could leave the changelog lock behind.
+   */
+  private void stopAsyncMigration() {
+    if (migrationFuture != null) {
+      migrationFuture.cancel(false);
+    }
+    migrationExecutor.shutdown();
+    long stopTimeout = (migrationTimeout > 0) ? migrationTimeout : MIGRATION_STOP_TIMEOUT;
+    try {
+      if (!migrationExecutor.awaitTermination(stopTimeout, TimeUnit.MILLISECONDS)) {
+        LogFactory.getLogger().warning("Asynchronous Liquibase migration did not stop in "
+            + stopTimeout + " ms, interrupting it: " + servicePid);
+        migrationExecutor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      migrationExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    } finally {
+      migrationExecutor = null;
+      migrationFuture = null;
+    }
+  }
+
+  /**
+   * Stores the fingerprint of the successful migration. A failure is not fatal as it only means
+   * that the changelogs will be checked fully at the next activation.
+   */
+  private void storeFingerprint(final ChangeLogFingerprintStore fingerprintStore,
+      final String fingerprint) {
+    try {
+      fingerprintStore.store(fingerprint);
+    } catch (SQLException e) {
+      LogFactory.getLogger().warning("Could not store changelog fingerprint", e);
+    }
+  }
+
+  /**
+   * Removes the replacements of the Liquibase changes that were registered for this component.
+   */
+  private void uninstallChangeReplacements() {
+    if (streamingLoadDataInstalled) {
+      StreamingLoadDataChange.uninstall();
+      streamingLoadDataInstalled = false;
+    }
+    if (onlineDdlInstalled) {
+      OnlineDdlSettings.uninstall();
+      onlineDdlInstalled = false;
+    }
+  }
+
+  /**
+   * Unregisters the DataSource services after the migration of the changed changelogs failed, so
+   * no service is available on a half-migrated schema. The next successful migration registers
+   * them again.
+   */
+  private void unregisterDataSources() {
+    synchronized (registrationMutex) {
+      if (deactivated) {
+        return;
+      }
+      migrationState = LiquibaseDataSourceConstants.MigrationState.FAILED;
+      for (ServiceRegistration<DataSource> serviceRegistration : serviceRegistrations) {
+        serviceRegistration.unregister();
+      }
+      serviceRegistrations.clear();
+      registeredTenants = null;
+      // The gate is open already, a later successful migration registers the DataSource directly
+      gate = null;
+    }
+  }
+
+  /**
+   * Called when only dynamic attributes changed. Those do not influence the schema, so the
+   * migration is not run again, only the properties of the registered services are refreshed.
+   */
+  @Update
+  public void update() {
+    synchronized (registrationMutex) {
+      if (deactivated || componentContext == null) {
+        return;
+      }
+      for (int i = 0; i < serviceRegistrations.size(); i++) {
+        String tenant = (registeredTenants == null) ? null : registeredTenants.get(i);
+        serviceRegistrations.get(i).setProperties(
+            createServiceProperties(componentContext, tenant, migrationState));
+      }
+    }
+  }
+
+  private void updateChangeLog(final BundleCapability changeLogCapability,
+      final Database database, final Contexts contextsObj,
+      final LabelExpression labelExpressionObj) throws LiquibaseException {
+    DatabaseChangeLog changeLog =
+        getChangeLog(changeLogCapability, database, contextsObj, labelExpressionObj);
+
+    ConcurrentUpdateLiquibase liquibase = new ConcurrentUpdateLiquibase(changeLog,
+        createResourceAccessor(changeLogCapability), database);
+
+    String capabilityName = String.valueOf(changeLogCapability.getAttributes()
+        .get(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG));
+    MigrationMetricsCollector.ChangeSetListener changeSetListener =
+        metricsCollector.createChangeSetListener(capabilityName);
+    MigrationWatchdog.ChangeSetBudgetListener budgetListener = null;
+    if (migrationWatchdog == null) {
+      liquibase.setChangeExecListener(changeSetListener);
+    } else {
+      budgetListener = migrationWatchdog.createChangeSetBudgetListener(changeSetListener);
+      liquibase.setChangeExecListener(budgetListener);
+    }
+    if (database.getConnection() instanceof BatchingJdbcConnection) {
+      liquibase.setUpdateExecutor(
+          ((BatchingJdbcConnection) database.getConnection()).getExecutor());
+    }
+
+    registerOnlineDdl(changeLogCapability, database);
+    long updateStartNanos = System.nanoTime();
+    try {
+      liquibase.update(tag, contextsObj, labelExpressionObj);
+    } finally {
+      OnlineDdlSettings.unregister(database);
+      if (budgetListener != null) {
+        budgetListener.finish();
+      }
+      changeSetListener.finish();
+      metricsCollector.addPhaseDuration(MigrationPhase.UPDATE, updateStartNanos);
+      metricsCollector.addPhaseDuration(
+          MigrationPhase.UPDATE_CAPABILITY_PREFIX + capabilityName, updateStartNanos);
+    }
+    metricsCollector.changeLogUpdated(changeLog.getChangeSets().size(),
+        changeSetListener.getExecutedChangeSetCount());
+  }
+
+  /**
+   * Applies a changelog on a new connection with the same schemas as the main database. The caller
+   * must hold the changelog lock.
+   */
+  private void updateChangeLogOnNewConnection(final BundleCapability changeLogCapability,
+      final Database mainDatabase,
+      final Contexts contextsObj, final LabelExpression labelExpressionObj)
+      throws SQLException, LiquibaseException {
+    try (Connection connection = watchConnection(dataSource.getConnection())) {
+      Database database = createDatabase(connection);
+      database.setDefaultSchemaName(mainDatabase.getDefaultSchemaName());
+      database.setLiquibaseSchemaName(mainDatabase.getLiquibaseSchemaName());
+      ExternalLockService.register(database);
+      try {
+        updateChangeLog(changeLogCapability, database, contextsObj, labelExpressionObj);
+      } finally {
+        ExternalLockService.unregister(database);
+      }
+    }
+  }
+
+  /**
+   * Applies the changelogs that are not marked as independent one after the other on the
+   * connection of the passed database, while each independent changelog is applied on its own
+   * connection at the same time. The caller must hold the changelog lock.
+   */
+  private void updateChangeLogsInParallel(final Database database,
+      final List<BundleCapability> changeLogs, final Contexts contextsObj,
+      final LabelExpression labelExpressionObj)
+      throws SQLException, LiquibaseException {
+
+    // The changelog table must exist before the parallel updates try to create it
+    ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database).init();
+
+    final List<BundleCapability> sequentialChangeLogs = new ArrayList<>();
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (final BundleCapability changeLogCapability : changeLogs) {
+      if (isIndependent(changeLogCapability)) {
+        tasks.add(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            updateChangeLogOnNewConnection(changeLogCapability, database, contextsObj,
+                labelExpressionObj);
+            return null;
+          }
+        });
+      } else {
+        sequentialChangeLogs.add(changeLogCapability);
+      }
+    }
+
+    if (!sequentialChangeLogs.isEmpty()) {
+      tasks.add(0, new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (BundleCapability changeLogCapability : sequentialChangeLogs) {
+            updateChangeLog(changeLogCapability, database, contextsObj, labelExpressionObj);
+          }
+          return null;
+        }
+      });
+    }
+
+    invokeAll(tasks, migrationParallelism, "Liquibase parallel migration");
+  }
+
+  /**
+   * Tells whether the files of the changelog contain parameters. The result is kept in the shared
+   * cache for the revision of the bundle. A changelog that is not a packaged resource of the
+   * bundle is handled as if it used parameters.
+   */
+  private boolean usesChangeLogParameters(final Bundle bundle, final String resourceName) {
+    ChangeLogCache changeLogCache = ChangeLogCache.getInstance();
+    Boolean parameterUsage = changeLogCache.getParameterUsage(bundle, resourceName);
+    if (parameterUsage == null) {
+      SortedMap<String, URL> files = ChangeLogFingerprint.findChangeLogFiles(bundle, resourceName);
+      try {
+        parameterUsage = files.isEmpty() || ChangeLogIndex.containsParameter(files);
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot read changelog files: " + resourceName, e);
+      }
+      changeLogCache.putParameterUsage(bundle, resourceName, parameterUsage);
+    }
+    return parameterUsage;
+  }
+
+  /**
+   * Validates the changelogs and checks that none of their changeSets is pending without changing
+   * anything in the database.
+   */
+  private void validateDatabase(final Connection connection, final Database database,
+      final String fingerprint, final Contexts contextsObj,
+      final LabelExpression labelExpressionObj)
+      throws SQLException, LiquibaseException {
+
+    ChangeLogFingerprintStore fingerprintStore =
+        new ChangeLogFingerprintStore(connection, database, fingerprintTableName);
+    if (!Boolean.TRUE.equals(forceFullCheck) && fingerprintStore.isUpToDate(fingerprint)) {
+      metricsCollector.addChangeLogRowCount(fingerprintStore.getLastChangeLogRowCount());
+      return;
+    }
+
+    int changeLogRowCount = fingerprintStore.countChangeLogRows();
+    metricsCollector.addChangeLogRowCount(changeLogRowCount);
+    List<String> pendingChangeSets = new ArrayList<>();
+    ExternalLockService.register(database);
+    try {
+      for (BundleCapability changeLogCapability : migrationChangeLogs) {
+        DatabaseChangeLog changeLog =
+            getChangeLog(changeLogCapability, database, contextsObj, labelExpressionObj);
+        if (changeLogRowCount < 0) {
+          // Liquibase would create the changelog table when it is asked for the unrun changeSets
+          changeLog.validate(database, contextsObj, labelExpressionObj);
+          for (ChangeSet changeSet : changeLog.getChangeSets()) {
+            pendingChangeSets.add(changeSet.toString(false));
+          }
+        } else {
+          Liquibase liquibase = new ConcurrentUpdateLiquibase(changeLog,
+              createResourceAccessor(changeLogCapability), database);
+          liquibase.validate();
+          for (ChangeSet changeSet : liquibase.listUnrunChangeSets(contextsObj,
+              labelExpressionObj)) {
+            pendingChangeSets.add(changeSet.toString(false));
+          }
+        }
+      }
+    } finally {
+      ExternalLockService.unregister(database);
+    }
+
+    if (!pendingChangeSets.isEmpty()) {
+      throw new LiquibaseException("The database is not up-to-date, " + pendingChangeSets.size()
+          + " changeSets are pending: " + pendingChangeSets);
+    }
+  }
+
+  /**
+   * Fills the connection pool before the DataSource is registered if warm-up connections are
+   * configured.
+   */
+  private void warmUp() {
+    if (warmUpConnections <= 0 || LiquibaseDataSourceConstants.MODE_UPDATE_SQL.equals(mode)) {
+      return;
+    }
+    long warmUpStartNanos = System.nanoTime();
+    new DataSourceWarmUp(dataSource, warmUpConnections, warmUpQueries)
+        .warmUp("Liquibase DataSource warm-up " + servicePid);
+    metricsCollector.addPhaseDuration(MigrationPhase.WARM_UP, warmUpStartNanos);
+  }
+
+  /**
+   * Wraps a connection of the migration with the watchdog of the migration if there is one.
+   */
+  private Connection watchConnection(final Connection connection) {
+    return (migrationWatchdog == null) ? connection : migrationWatchdog.watch(connection);
+  }
+
+  /**
+   * Writes the SQL of the pending changeSets of all changelogs into the update SQL file. The
+   * statements are written to the file while they are generated.
+   */
+  private void writeUpdateSql(final Database database, final Contexts contextsObj,
+      final LabelExpression labelExpressionObj) throws LiquibaseException {
+    ExternalLockService.register(database);
+    try (Writer output =
+        Files.newBufferedWriter(Paths.get(updateSqlFile), StandardCharsets.UTF_8)) {
+      for (BundleCapability changeLogCapability : migrationChangeLogs) {
+        DatabaseChangeLog changeLog =
+            getChangeLog(changeLogCapability, database, contextsObj, labelExpressionObj);
+        Liquibase liquibase = new ConcurrentUpdateLiquibase(changeLog,
+            createResourceAccessor(changeLogCapability), database);
+        registerOnlineDdl(changeLogCapability, database);
+        try {
+          liquibase.update(tag, contextsObj, labelExpressionObj, output);
+        } finally {
+          OnlineDdlSettings.unregister(database);
+        }
+      }
+    } catch (IOException e) {
+      throw new LiquibaseException("Could not write update SQL file: " + updateSqlFile, e);
+    } finally {
+      ExternalLockService.unregister(database);
+    }
+  }
+
 }
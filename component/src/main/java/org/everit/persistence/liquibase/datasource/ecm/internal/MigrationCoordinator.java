@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.sql.DataSource;
+
+import liquibase.exception.LiquibaseException;
+import liquibase.logging.LogFactory;
+
+/**
+ * Coordinates the migrations of the component instances that use the same DataSource service
+ * object. Instead of each one opening its own connection and competing for the changelog lock,
+ * the migrations that are submitted while another one is running are collected and executed one
+ * after the other in a single session. A lock that one migration acquired is held by the session
+ * until the end of the batch, so the following migrations with the same lock do not have to
+ * acquire it again. The thread that submits the first migration runs the first batch. After its
+ * batch, the leadership is handed over to the thread of the first migration that was collected in
+ * the meantime, so no thread runs more migrations than the ones that it waited for.
+ */
+final class MigrationCoordinator {
+
+  /**
+   * A migration of one component instance.
+   */
+  interface Migration {
+
+    void migrate(Session session) throws SQLException, LiquibaseException;
+  }
+
+  /**
+   * A submitted migration and the future that completes when it is done.
+   */
+  private static final class Request implements Callable<Void> {
+
+    private boolean failed;
+
+    private Exception failure;
+
+    private final FutureTask<Void> future = new FutureTask<>(this);
+
+    private final Migration migration;
+
+    /**
+     * Whether the thread of the migration runs the next batch. Guarded by the queues.
+     */
+    private boolean promoted;
+
+    private Session session;
+
+    Request(final Migration migration) {
+      this.migration = migration;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      if (failure != null) {
+        throw failure;
+      }
+      try {
+        migration.migrate(session);
+      } catch (SQLException | LiquibaseException | RuntimeException e) {
+        failed = true;
+        throw e;
+      }
+      return null;
+    }
+
+    /**
+     * Completes the future with the exception if the migration has not run yet.
+     */
+    void fail(final Exception cause) {
+      failure = cause;
+      future.run();
+    }
+
+    void run(final Session session) {
+      this.session = session;
+      future.run();
+    }
+  }
+
+  /**
+   * The connection that the migrations of a batch share and the locks that are held until the end
+   * of the batch.
+   */
+  static final class Session {
+
+    private final Connection connection;
+
+    private final Map<String, MigrationLock> heldLocks = new HashMap<>();
+
+    Session(final Connection connection) {
+      this.connection = connection;
+    }
+
+    public Connection getConnection() {
+      return connection;
+    }
+
+    /**
+     * Returns the lock that a previous migration of the batch acquired with the same key or
+     * <code>null</code> if there is no such lock.
+     */
+    public MigrationLock getHeldLock(final String lockKey) {
+      return heldLocks.get(lockKey);
+    }
+
+    /**
+     * Keeps an acquired lock until the end of the batch.
+     */
+    public void holdLock(final String lockKey, final MigrationLock lock) {
+      heldLocks.put(lockKey, lock);
+    }
+
+    private void releaseLocks() {
+      for (MigrationLock lock : heldLocks.values()) {
+        lock.release();
+      }
+      heldLocks.clear();
+    }
+  }
+
+  private static final MigrationCoordinator INSTANCE = new MigrationCoordinator();
+
+  public static MigrationCoordinator getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * The migrations that wait for the next batch by DataSource. A DataSource has an entry only
+   * while one of its batches is running.
+   */
+  private final Map<DataSource, List<Request>> queues = new IdentityHashMap<>();
+
+  private MigrationCoordinator() {
+  }
+
+  /**
+   * Waits until the migration is done by another thread or its thread is promoted to run the next
+   * batch. If the waiting thread is interrupted, the migration is withdrawn unless it already
+   * runs.
+   *
+   * @return Whether the thread of the migration runs the next batch.
+   */
+  private boolean awaitLeadership(final DataSource dataSource, final Request request)
+      throws LiquibaseException {
+    synchronized (queues) {
+      try {
+        while (!request.promoted && !request.future.isDone()) {
+          queues.wait();
+        }
+        return request.promoted;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        List<Request> queue = queues.get(dataSource);
+        if (queue != null && queue.remove(request) && request.promoted) {
+          handOver(dataSource);
+        }
+        throw new LiquibaseException("Interrupted while waiting for the coordinated migration",
+            e);
+      }
+    }
+  }
+
+  private List<Request> drain(final DataSource dataSource) {
+    synchronized (queues) {
+      List<Request> queue = queues.get(dataSource);
+      List<Request> batch = new ArrayList<>(queue);
+      queue.clear();
+      return batch;
+    }
+  }
+
+  /**
+   * Promotes the first waiting migration to run the next batch or removes the queue of the
+   * DataSource if no migration is waiting. The waiting threads are woken up, as the migrations of
+   * the finished batch are done.
+   */
+  private void handOver(final DataSource dataSource) {
+    synchronized (queues) {
+      List<Request> queue = queues.get(dataSource);
+      if (queue.isEmpty()) {
+        queues.remove(dataSource);
+      } else {
+        queue.get(0).promoted = true;
+      }
+      queues.notifyAll();
+    }
+  }
+
+  /**
+   * Runs the migration in a session that is shared with the migrations of the other components
+   * that use the same DataSource and waits until it is done.
+   */
+  public void migrate(final DataSource dataSource, final Migration migration)
+      throws SQLException, LiquibaseException {
+    Request request = new Request(migration);
+    boolean leader;
+    synchronized (queues) {
+      List<Request> queue = queues.get(dataSource);
+      leader = (queue == null);
+      if (leader) {
+        queue = new ArrayList<>();
+        queues.put(dataSource, queue);
+      }
+      queue.add(request);
+    }
+
+    if (!leader) {
+      leader = awaitLeadership(dataSource, request);
+    }
+    if (leader) {
+      try {
+        runBatch(dataSource, drain(dataSource));
+      } finally {
+        handOver(dataSource);
+      }
+    }
+
+    try {
+      request.future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LiquibaseException("Interrupted while waiting for the coordinated migration", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      if (cause instanceof LiquibaseException) {
+        throw (LiquibaseException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new LiquibaseException(cause);
+    }
+  }
+
+  private void rollbackQuietly(final Connection connection) {
+    try {
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+      }
+    } catch (SQLException e) {
+      LogFactory.getLogger().debug("Could not roll back after a failed coordinated migration", e);
+    }
+  }
+
+  private void runBatch(final DataSource dataSource, final List<Request> batch) {
+    try (Connection connection = dataSource.getConnection()) {
+      Session session = new Session(connection);
+      try {
+        for (Request request : batch) {
+          request.run(session);
+          if (request.failed) {
+            // The failure is reported to the submitter, the others continue with a clean state
+            rollbackQuietly(connection);
+          }
+        }
+      } finally {
+        session.releaseLocks();
+      }
+    } catch (SQLException | RuntimeException e) {
+      for (Request request : batch) {
+        request.fail(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import liquibase.exception.LockException;
+import liquibase.logging.LogFactory;
+
+/**
+ * The lock of a schema migration that is polled with exponential backoff and jitter instead of
+ * the fixed recheck interval of Liquibase. This way the nodes of a cluster that start at the same
+ * time do not query the lock in lockstep.
+ */
+class MigrationLock {
+
+  private long backoffMillis;
+
+  private final long deadlineNanos;
+
+  private boolean locked = false;
+
+  private final MigrationLockProvider lockProvider;
+
+  private final long maxBackoffMillis;
+
+  private final long waitTimeoutMillis;
+
+  MigrationLock(final MigrationLockProvider lockProvider, final long waitTimeoutMillis,
+      final long initialBackoffMillis, final long maxBackoffMillis) {
+    this.lockProvider = lockProvider;
+    this.waitTimeoutMillis = waitTimeoutMillis;
+    this.backoffMillis = Math.max(1, initialBackoffMillis);
+    this.maxBackoffMillis = Math.max(this.backoffMillis, maxBackoffMillis);
+    this.deadlineNanos = System.nanoTime() + waitTimeoutMillis * 1000000L;
+  }
+
+  /**
+   * Waits until the lock is acquired.
+   *
+   * @throws LockException
+   *           if the lock could not be acquired within the wait timeout.
+   */
+  public void acquire() throws LockException {
+    while (!tryAcquire()) {
+      backoff();
+    }
+  }
+
+  /**
+   * Waits until no one holds the lock without acquiring it.
+   *
+   * @throws LockException
+   *           if the lock was not released within the wait timeout.
+   */
+  public void awaitRelease() throws LockException {
+    while (lockProvider.isLockedByOthers()) {
+      backoff();
+    }
+  }
+
+  private void backoff() throws LockException {
+    long remainingMillis = (deadlineNanos - System.nanoTime()) / 1000000L;
+    if (remainingMillis <= 0) {
+      throw new LockException("Could not acquire the changelog lock within " + waitTimeoutMillis
+          + " ms. Currently locked by: " + lockProvider.describeOwner());
+    }
+
+    long sleepMillis =
+        backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+    backoffMillis = Math.min(maxBackoffMillis, backoffMillis * 2);
+    try {
+      Thread.sleep(Math.min(sleepMillis, remainingMillis));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LockException("Interrupted while waiting for the changelog lock");
+    }
+  }
+
+  /**
+   * Releases the lock if it is held. A failure is logged only so it does not hide the original
+   * exception of the migration.
+   */
+  public void release() {
+    if (!locked) {
+      return;
+    }
+    try {
+      lockProvider.release();
+      locked = false;
+    } catch (LockException e) {
+      LogFactory.getLogger().severe("Could not release the Liquibase changelog lock", e);
+    }
+  }
+
+  /**
+   * Tries to acquire the lock once.
+   *
+   * @return Whether the lock is held.
+   */
+  public boolean tryAcquire() throws LockException {
+    locked = lockProvider.tryAcquire();
+    return locked;
+  }
+}
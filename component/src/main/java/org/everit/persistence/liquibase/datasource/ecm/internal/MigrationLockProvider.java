@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import liquibase.exception.LockException;
+
+/**
+ * Implementation of the lock that serializes the migrations of the same schema.
+ */
+interface MigrationLockProvider {
+
+  /**
+   * Returns a human readable description of the current owner of the lock for error messages.
+   */
+  String describeOwner();
+
+  /**
+   * Checks whether the lock is currently held by someone else without keeping it.
+   */
+  boolean isLockedByOthers() throws LockException;
+
+  /**
+   * Releases the lock that was acquired by {@link #tryAcquire()}.
+   */
+  void release() throws LockException;
+
+  /**
+   * Tries to acquire the lock once without waiting.
+   *
+   * @return Whether the lock was acquired.
+   */
+  boolean tryAcquire() throws LockException;
+}
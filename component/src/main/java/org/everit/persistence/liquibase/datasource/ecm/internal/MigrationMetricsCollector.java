@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.persistence.liquibase.datasource.ecm.ChangeSetExecution;
+import org.everit.persistence.liquibase.datasource.ecm.LiquibaseDataSourceConstants;
+import org.everit.persistence.liquibase.datasource.ecm.MigrationMetrics;
+
+import liquibase.change.Change;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.ChangeSet.ExecType;
+import liquibase.changelog.ChangeSet.RunStatus;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.visitor.AbstractChangeExecListener;
+import liquibase.database.Database;
+import liquibase.database.DatabaseConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.UnexpectedLiquibaseException;
+
+/**
+ * Collects the metrics of one migration run. The collector is thread-safe so it can be used by
+ * the updates that run in parallel.
+ */
+class MigrationMetricsCollector {
+
+  /**
+   * Listener that measures the changeSets of one Liquibase update.
+   */
+  class ChangeSetListener extends AbstractChangeExecListener {
+
+    private final String capabilityName;
+
+    private ChangeSet currentChangeSet;
+
+    private long currentChangeSetStartNanos;
+
+    private long currentChangeSetStartStatementCount;
+
+    private Database currentDatabase;
+
+    private int executedChangeSetCount;
+
+    ChangeSetListener(final String capabilityName) {
+      this.capabilityName = capabilityName;
+    }
+
+    /**
+     * Records the changeSet that was started but not finished as failed.
+     */
+    public void finish() {
+      if (currentChangeSet != null) {
+        addChangeSetExecution(capabilityName, currentChangeSet, currentChangeSetStartNanos,
+            "FAILED", countCurrentChangeSetStatements());
+        currentChangeSet = null;
+        currentDatabase = null;
+      }
+    }
+
+    /**
+     * Counts the statements that the executor of the database executed since the current changeSet
+     * was started.
+     */
+    private int countCurrentChangeSetStatements() {
+      return (int) (countExecutedStatements(currentDatabase)
+          - currentChangeSetStartStatementCount);
+    }
+
+    public int getExecutedChangeSetCount() {
+      return executedChangeSetCount;
+    }
+
+    /**
+     * Executes the statements that are collected in the batch after the last change of the
+     * changeSet, so a failing statement fails the changeSet that generated it and not the one
+     * that executes the next statement.
+     */
+    @Override
+    public void ran(final Change change, final ChangeSet changeSet,
+        final DatabaseChangeLog changeLog, final Database database) {
+      List<Change> changes = changeSet.getChanges();
+      DatabaseConnection connection = database.getConnection();
+      if (change == changes.get(changes.size() - 1)
+          && connection instanceof BatchingJdbcConnection) {
+        try {
+          ((BatchingJdbcConnection) connection).flush();
+        } catch (DatabaseException e) {
+          throw new UnexpectedLiquibaseException(e);
+        }
+      }
+    }
+
+    @Override
+    public void ran(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+        final Database database, final ExecType execType) {
+      addChangeSetExecution(capabilityName, changeSet, currentChangeSetStartNanos,
+          execType.name(), countCurrentChangeSetStatements());
+      if (execType == ExecType.EXECUTED || execType == ExecType.RERAN) {
+        executedChangeSetCount++;
+      }
+      currentChangeSet = null;
+      currentDatabase = null;
+    }
+
+    @Override
+    public void willRun(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+        final Database database, final RunStatus runStatus) {
+      currentChangeSet = changeSet;
+      currentChangeSetStartNanos = System.nanoTime();
+      currentDatabase = database;
+      currentChangeSetStartStatementCount = countExecutedStatements(database);
+    }
+  }
+
+  /**
+   * Returns the number of statements that the executor of the migration executed on the
+   * connection of the database so far. The statements are counted where they are executed, so
+   * they do not have to be generated again for the metrics.
+   */
+  private static long countExecutedStatements(final Database database) {
+    DatabaseConnection connection = (database == null) ? null : database.getConnection();
+    if (connection instanceof BatchingJdbcConnection) {
+      return ((BatchingJdbcConnection) connection).getExecutedStatementCount();
+    }
+    return 0;
+  }
+
+  private final AtomicInteger appliedChangeSetCount = new AtomicInteger();
+
+  private final List<ChangeSetExecution> changeSetExecutions = new ArrayList<>();
+
+  private final AtomicInteger changeLogRowCount = new AtomicInteger(-1);
+
+  private final AtomicInteger pendingChangeSetCount = new AtomicInteger(-1);
+
+  private final ConcurrentMap<String, List<long[]>> phaseIntervals = new ConcurrentHashMap<>();
+
+  private final AtomicInteger skippedChangeSetCount = new AtomicInteger();
+
+  private final long startNanos = System.nanoTime();
+
+  /**
+   * Adds the number of rows of the changelog table of a schema after its migration. The row
+   * counts of the tenant schemas are summed.
+   *
+   * @param count
+   *          The number of rows or -1 if the changelog table does not exist.
+   */
+  public void addChangeLogRowCount(final int count) {
+    if (count >= 0) {
+      changeLogRowCount.compareAndSet(-1, 0);
+      changeLogRowCount.addAndGet(count);
+    }
+  }
+
+  private void addChangeSetExecution(final String capabilityName, final ChangeSet changeSet,
+      final long changeSetStartNanos, final String outcome, final int statementCount) {
+    ChangeSetExecution execution = new ChangeSetExecution(capabilityName,
+        changeSet.getFilePath(), changeSet.getId(), changeSet.getAuthor(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - changeSetStartNanos), outcome,
+        statementCount);
+    synchronized (changeSetExecutions) {
+      changeSetExecutions.add(execution);
+    }
+  }
+
+  /**
+   * Adds the number of pending changeSets that were found on a schema before the migration.
+   */
+  public void addPendingChangeSetCount(final int count) {
+    pendingChangeSetCount.compareAndSet(-1, 0);
+    pendingChangeSetCount.addAndGet(count);
+  }
+
+  /**
+   * Adds the time elapsed since the start time to the duration of the phase. The intervals of a
+   * phase that overlap as they run on multiple threads at the same time are counted only once,
+   * so the duration of a phase is never longer than the migration.
+   *
+   * @param phase
+   *          The name of the phase.
+   * @param phaseStartNanos
+   *          The value of {@link System#nanoTime()} when the phase started.
+   */
+  public void addPhaseDuration(final String phase, final long phaseStartNanos) {
+    long[] interval = new long[] { phaseStartNanos, System.nanoTime() };
+    List<long[]> intervals = phaseIntervals.get(phase);
+    if (intervals == null) {
+      List<long[]> newIntervals = new ArrayList<>();
+      intervals = phaseIntervals.putIfAbsent(phase, newIntervals);
+      if (intervals == null) {
+        intervals = newIntervals;
+      }
+    }
+    synchronized (intervals) {
+      intervals.add(interval);
+    }
+  }
+
+  /**
+   * Records how many changeSets of a changelog were executed and skipped by an update.
+   */
+  public void changeLogUpdated(final int changeSetCount, final int executedChangeSetCount) {
+    appliedChangeSetCount.addAndGet(executedChangeSetCount);
+    skippedChangeSetCount.addAndGet(Math.max(0, changeSetCount - executedChangeSetCount));
+  }
+
+  public ChangeSetListener createChangeSetListener(final String capabilityName) {
+    return new ChangeSetListener(capabilityName);
+  }
+
+
+  /**
+   * Returns the length of the union of the intervals.
+   */
+  private long sumIntervals(final List<long[]> intervals) {
+    List<long[]> sortedIntervals;
+    synchronized (intervals) {
+      sortedIntervals = new ArrayList<>(intervals);
+    }
+    Collections.sort(sortedIntervals, new Comparator<long[]>() {
+      @Override
+      public int compare(final long[] interval1, final long[] interval2) {
+        return Long.compare(interval1[0], interval2[0]);
+      }
+    });
+
+    long sum = 0;
+    long coveredUntil = Long.MIN_VALUE;
+    for (long[] interval : sortedIntervals) {
+      long start = Math.max(interval[0], coveredUntil);
+      if (interval[1] > start) {
+        sum += interval[1] - start;
+        coveredUntil = interval[1];
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Creates the metrics object from the collected data.
+   */
+  public MigrationMetrics toMigrationMetrics(final String servicePid, final boolean successful) {
+    Map<String, Long> phaseDurationMillis = new TreeMap<>();
+    for (Map.Entry<String, List<long[]>> phaseInterval : phaseIntervals.entrySet()) {
+      phaseDurationMillis.put(phaseInterval.getKey(),
+          TimeUnit.NANOSECONDS.toMillis(sumIntervals(phaseInterval.getValue())));
+    }
+    phaseDurationMillis.put(LiquibaseDataSourceConstants.MigrationPhase.TOTAL,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+    List<ChangeSetExecution> executions;
+    synchronized (changeSetExecutions) {
+      executions = new ArrayList<>(changeSetExecutions);
+    }
+
+    return new MigrationMetrics(servicePid, successful, phaseDurationMillis, executions,
+        appliedChangeSetCount.get(), skippedChangeSetCount.get(), changeLogRowCount.get(),
+        pendingChangeSetCount.get());
+  }
+}
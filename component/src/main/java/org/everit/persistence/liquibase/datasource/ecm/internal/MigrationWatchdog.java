@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import liquibase.change.Change;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.ChangeSet.ExecType;
+import liquibase.changelog.ChangeSet.RunStatus;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.visitor.AbstractChangeExecListener;
+import liquibase.changelog.visitor.ChangeExecListener;
+import liquibase.database.Database;
+import liquibase.logging.LogFactory;
+
+/**
+ * Enforces the time budgets of one migration. The connections of the migration are wrapped so
+ * every statement gets the statement timeout and the open statements can be cancelled. If a
+ * changeSet or the whole migration exceeds its budget, the open statements are cancelled, so the
+ * migration fails and releases the changelog lock and its connections. If the migration is still
+ * running after a grace period, e.g. because the driver ignores the cancel request, the
+ * connections are aborted.
+ */
+class MigrationWatchdog {
+
+  /**
+   * Listener that schedules the budget of every changeSet and forwards the events to another
+   * listener.
+   */
+  class ChangeSetBudgetListener extends AbstractChangeExecListener {
+
+    private ChangeSet currentChangeSet;
+
+    private long currentChangeSetStartNanos;
+
+    private final ChangeExecListener delegate;
+
+    private ScheduledFuture<?> expiry;
+
+    private volatile String expiryMessage;
+
+    ChangeSetBudgetListener(final ChangeExecListener delegate) {
+      this.delegate = delegate;
+    }
+
+    private void changeSetFinished() {
+      if (expiry != null) {
+        expiry.cancel(false);
+        expiry = null;
+      }
+      String message = expiryMessage;
+      if (message != null) {
+        long elapsedMillis =
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - currentChangeSetStartNanos);
+        String report = "ChangeSet " + currentChangeSet.toString(false) + " ran for "
+            + elapsedMillis + " ms, exceeding its time budget of " + changeSetTimeout + " ms";
+        LogFactory.getLogger().severe(report);
+        violation.compareAndSet(message, report);
+        expiryMessage = null;
+      }
+      currentChangeSet = null;
+    }
+
+    /**
+     * Stops measuring the changeSet that was started but not finished.
+     */
+    public void finish() {
+      if (currentChangeSet != null) {
+        changeSetFinished();
+      }
+    }
+
+    @Override
+    public void ran(final Change change, final ChangeSet changeSet,
+        final DatabaseChangeLog changeLog, final Database database) {
+      delegate.ran(change, changeSet, changeLog, database);
+    }
+
+    @Override
+    public void ran(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+        final Database database, final ExecType execType) {
+      changeSetFinished();
+      delegate.ran(changeSet, databaseChangeLog, database, execType);
+    }
+
+    @Override
+    public void willRun(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+        final Database database, final RunStatus runStatus) {
+      currentChangeSet = changeSet;
+      currentChangeSetStartNanos = System.nanoTime();
+      if (changeSetTimeout > 0) {
+        final String message = "ChangeSet " + changeSet.toString(false)
+            + " exceeded its time budget of " + changeSetTimeout + " ms";
+        expiry = scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            expiryMessage = message;
+            budgetExceeded(message);
+          }
+        }, changeSetTimeout, TimeUnit.MILLISECONDS);
+      }
+      delegate.willRun(changeSet, databaseChangeLog, database, runStatus);
+    }
+  }
+
+  private static final long ABORT_GRACE_PERIOD = 10000;
+
+  private static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(final Runnable command) {
+      command.run();
+    }
+  };
+
+  private static Object forward(final Object proxy, final Object target, final Method method,
+      final Object[] args) throws Throwable {
+    if ("equals".equals(method.getName()) && args != null && args.length == 1) {
+      return proxy == args[0];
+    }
+    if ("hashCode".equals(method.getName()) && args == null) {
+      return System.identityHashCode(proxy);
+    }
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private final long changeSetTimeout;
+
+  private final Set<Connection> connections =
+      Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Connection,
+          Boolean>()));
+
+  private final long deadlineNanos;
+
+  private final long migrationTimeout;
+
+  private final Set<Statement> openStatements =
+      Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Statement,
+          Boolean>()));
+
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  private final int statementTimeoutSeconds;
+
+  private final AtomicReference<String> violation = new AtomicReference<>();
+
+  /**
+   * Constructor.
+   *
+   * @param threadName
+   *          The name of the thread that checks the budgets.
+   * @param statementTimeout
+   *          The query timeout of every statement in milliseconds. It is rounded up to seconds as
+   *          JDBC does not support a finer resolution. Zero means no timeout.
+   * @param changeSetTimeout
+   *          The time budget of a changeSet in milliseconds or zero if there is no budget.
+   * @param migrationTimeout
+   *          The time budget of the whole migration in milliseconds or zero if there is no
+   *          budget.
+   */
+  MigrationWatchdog(final String threadName, final long statementTimeout,
+      final long changeSetTimeout, final long migrationTimeout) {
+    this.statementTimeoutSeconds =
+        (int) Math.min(Integer.MAX_VALUE, (Math.max(0, statementTimeout) + 999) / 1000);
+    this.changeSetTimeout = changeSetTimeout;
+    this.migrationTimeout = migrationTimeout;
+    this.deadlineNanos = System.nanoTime() + migrationTimeout * 1000000L;
+
+    scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(threadName));
+    scheduler.setRemoveOnCancelPolicy(true);
+    if (migrationTimeout > 0) {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          budgetExceeded("The migration exceeded its time budget of " + migrationTimeout + " ms");
+        }
+      }, migrationTimeout, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void abortConnections() {
+    Connection[] connectionsToAbort;
+    synchronized (connections) {
+      connectionsToAbort = connections.toArray(new Connection[connections.size()]);
+    }
+    if (connectionsToAbort.length == 0) {
+      return;
+    }
+    LogFactory.getLogger().severe("The migration did not stop within " + ABORT_GRACE_PERIOD
+        + " ms after its statements were cancelled, aborting its connections");
+    for (Connection connection : connectionsToAbort) {
+      try {
+        connection.abort(DIRECT_EXECUTOR);
+      } catch (SQLException | RuntimeException e) {
+        LogFactory.getLogger().warning("Could not abort migration connection", e);
+      }
+    }
+  }
+
+  private void budgetExceeded(final String message) {
+    if (!violation.compareAndSet(null, message)) {
+      return;
+    }
+    LogFactory.getLogger().severe(message + ", cancelling the running statements");
+    cancelStatements();
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        abortConnections();
+      }
+    }, ABORT_GRACE_PERIOD, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancelStatements() {
+    Statement[] statements;
+    synchronized (openStatements) {
+      statements = openStatements.toArray(new Statement[openStatements.size()]);
+    }
+    for (Statement statement : statements) {
+      try {
+        statement.cancel();
+      } catch (SQLException | RuntimeException e) {
+        LogFactory.getLogger().debug("Could not cancel migration statement", e);
+      }
+    }
+  }
+
+  public ChangeSetBudgetListener createChangeSetBudgetListener(
+      final ChangeExecListener delegate) {
+    return new ChangeSetBudgetListener(delegate);
+  }
+
+  /**
+   * Returns the description of the exceeded budget or <code>null</code> if every budget was kept
+   * so far.
+   */
+  public String getViolation() {
+    return violation.get();
+  }
+
+  /**
+   * Limits a wait time so the wait ends before the deadline of the migration.
+   */
+  public long limitWaitTime(final long waitMillis) {
+    if (migrationTimeout <= 0) {
+      return waitMillis;
+    }
+    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+    return Math.max(0, Math.min(waitMillis, remainingMillis));
+  }
+
+  /**
+   * Stops the budget checks. The connections are not aborted anymore.
+   */
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Wraps a connection of the migration so the statement timeout is applied on its statements and
+   * they can be cancelled if a budget is exceeded. Closing the returned connection closes the
+   * wrapped one.
+   */
+  public Connection watch(final Connection connection) {
+    connections.add(connection);
+    return (Connection) Proxy.newProxyInstance(MigrationWatchdog.class.getClassLoader(),
+        new Class<?>[] { Connection.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(final Object proxy, final Method method, final Object[] args)
+              throws Throwable {
+            if ("close".equals(method.getName())) {
+              connections.remove(connection);
+            }
+            Object result = forward(proxy, connection, method, args);
+            if (result instanceof Statement && method.getReturnType().isInterface()) {
+              return watchStatement((Statement) result, method.getReturnType());
+            }
+            return result;
+          }
+        });
+  }
+
+  private Object watchStatement(final Statement statement, final Class<?> statementType)
+      throws SQLException {
+    if (statementTimeoutSeconds > 0) {
+      statement.setQueryTimeout(statementTimeoutSeconds);
+    }
+    openStatements.add(statement);
+    return Proxy.newProxyInstance(MigrationWatchdog.class.getClassLoader(),
+        new Class<?>[] { statementType }, new InvocationHandler() {
+          @Override
+          public Object invoke(final Object proxy, final Method method, final Object[] args)
+              throws Throwable {
+            if ("close".equals(method.getName())) {
+              openStatements.remove(statement);
+            }
+            return forward(proxy, statement, method, args);
+          }
+        });
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import liquibase.database.Database;
+import liquibase.database.DatabaseConnection;
+import liquibase.database.PreparedStatementFactory;
+import liquibase.exception.DatabaseException;
+import liquibase.statement.AbstractSqlStatement;
+import liquibase.statement.ExecutablePreparedStatement;
+
+/**
+ * Statement that commits the current transaction and executes its SQL in auto-commit mode. It is
+ * needed for the DDL statements that cannot run in a transaction block, like
+ * <code>CREATE INDEX CONCURRENTLY</code> on PostgreSQL.
+ */
+class NonTransactionalSqlStatement extends AbstractSqlStatement
+    implements ExecutablePreparedStatement {
+
+  private final Database database;
+
+  private final String sql;
+
+  NonTransactionalSqlStatement(final Database database, final String sql) {
+    this.database = database;
+    this.sql = sql;
+  }
+
+  @Override
+  public void execute(final PreparedStatementFactory factory) throws DatabaseException {
+    DatabaseConnection connection = database.getConnection();
+    boolean autoCommit = connection.getAutoCommit();
+    if (!autoCommit) {
+      connection.commit();
+      connection.setAutoCommit(true);
+    }
+    try (PreparedStatement statement = factory.create(sql)) {
+      statement.execute();
+    } catch (SQLException e) {
+      throw new DatabaseException("Error executing SQL " + sql + ": " + e.getMessage(), e);
+    } finally {
+      if (!autoCommit) {
+        connection.setAutoCommit(false);
+      }
+    }
+  }
+}
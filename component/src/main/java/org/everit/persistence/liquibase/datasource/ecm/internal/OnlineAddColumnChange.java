@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import liquibase.change.AddColumnConfig;
+import liquibase.change.ChangeMetaData;
+import liquibase.change.ConstraintsConfig;
+import liquibase.change.DatabaseChange;
+import liquibase.change.core.AddColumnChange;
+import liquibase.database.Database;
+import liquibase.datatype.DataTypeFactory;
+import liquibase.executor.ExecutorService;
+import liquibase.executor.LoggingExecutor;
+import liquibase.statement.SqlStatement;
+import liquibase.statement.core.AddColumnStatement;
+import liquibase.statement.core.AddDefaultValueStatement;
+import liquibase.statement.core.AddNotNullConstraintStatement;
+
+/**
+ * Replacement of the addColumn change that does not fill the new columns in the same statement
+ * if online DDL is enabled for the changeSet. The column is added as nullable without a default
+ * value, which is a quick metadata change on most databases. After that the default value is set
+ * for the new rows, the existing rows are filled in chunks with a commit after each chunk and at
+ * the end the not null constraint is added. Columns with other constraints, positioned columns
+ * and databases without a way to limit an update fall back to the original behavior.
+ */
+@DatabaseChange(name = "addColumn",
+    description = "Adds a new column to an existing table. The existing rows are filled in"
+        + " chunks if online DDL is enabled for the changeSet.",
+    priority = ChangeMetaData.PRIORITY_DEFAULT + 1, appliesTo = "table")
+public class OnlineAddColumnChange extends AddColumnChange {
+
+  private static final Set<String> CHUNKED_UPDATE_DATABASES = new HashSet<>(
+      Arrays.asList("h2", "mariadb", "mssql", "mysql", "oracle", "postgresql"));
+
+  private String createChunkedUpdateSql(final Database database, final String tableName,
+      final String columnName, final String value, final int chunkSize) {
+    String condition = columnName + " IS NULL";
+    switch (database.getShortName()) {
+      case "postgresql":
+        return "UPDATE " + tableName + " SET " + columnName + " = " + value
+            + " WHERE ctid IN (SELECT ctid FROM " + tableName + " WHERE " + condition
+            + " LIMIT " + chunkSize + ")";
+      case "mysql":
+      case "mariadb":
+      case "h2":
+        return "UPDATE " + tableName + " SET " + columnName + " = " + value + " WHERE "
+            + condition + " LIMIT " + chunkSize;
+      case "oracle":
+        return "UPDATE " + tableName + " SET " + columnName + " = " + value + " WHERE "
+            + condition + " AND ROWNUM <= " + chunkSize;
+      case "mssql":
+        return "UPDATE TOP (" + chunkSize + ") " + tableName + " SET " + columnName + " = "
+            + value + " WHERE " + condition;
+      default:
+        throw new IllegalStateException(
+            "Chunked update is not supported on " + database.getShortName());
+    }
+  }
+
+  @Override
+  public SqlStatement[] generateStatements(final Database database) {
+    OnlineDdlSettings settings = OnlineDdlSettings.get(database, getChangeSet());
+    if (settings == null || !isOnlineApplicable(database)) {
+      return super.generateStatements(database);
+    }
+
+    String tableName =
+        database.escapeTableName(getCatalogName(), getSchemaName(), getTableName());
+    List<SqlStatement> statements = new ArrayList<>();
+    for (AddColumnConfig column : getColumns()) {
+      statements.add(new AddColumnStatement(getCatalogName(), getSchemaName(), getTableName(),
+          column.getName(), column.getType(), null, column.getRemarks()));
+
+      Object defaultValue = column.getDefaultValueObject();
+      if (defaultValue != null) {
+        statements.add(new AddDefaultValueStatement(getCatalogName(), getSchemaName(),
+            getTableName(), column.getName(), column.getType(), defaultValue));
+      }
+
+      Object value = (column.getValueObject() != null) ? column.getValueObject() : defaultValue;
+      if (value != null) {
+        String columnName = database.escapeColumnName(getCatalogName(), getSchemaName(),
+            getTableName(), column.getName());
+        String valueSql = DataTypeFactory.getInstance().fromObject(value, database)
+            .objectToSql(value, database);
+        statements.add(new ChunkedBackfillStatement(database,
+            "SELECT COUNT(*) FROM " + tableName + " WHERE " + columnName + " IS NULL",
+            createChunkedUpdateSql(database, tableName, columnName, valueSql,
+                settings.getChunkSize()),
+            settings));
+      }
+
+      ConstraintsConfig constraints = column.getConstraints();
+      if (constraints != null && Boolean.FALSE.equals(constraints.isNullable())) {
+        statements.add(new AddNotNullConstraintStatement(getCatalogName(), getSchemaName(),
+            getTableName(), column.getName(), column.getType(), null));
+      }
+    }
+    return statements.toArray(new SqlStatement[statements.size()]);
+  }
+
+  private boolean hasConstraintBesidesNotNull(final ConstraintsConfig constraints) {
+    return constraints != null && (Boolean.TRUE.equals(constraints.isPrimaryKey())
+        || Boolean.TRUE.equals(constraints.isUnique()) || constraints.getReferences() != null
+        || constraints.getReferencedTableName() != null
+        || constraints.getCheckConstraint() != null);
+  }
+
+  private boolean isOnlineApplicable(final Database database) {
+    if (ExecutorService.getInstance().getExecutor(database) instanceof LoggingExecutor
+        || !CHUNKED_UPDATE_DATABASES.contains(database.getShortName())) {
+      return false;
+    }
+    for (AddColumnConfig column : getColumns()) {
+      if (column.getAfterColumn() != null || column.getBeforeColumn() != null
+          || column.getPosition() != null || Boolean.TRUE.equals(column.isAutoIncrement())
+          || hasConstraintBesidesNotNull(column.getConstraints())) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import liquibase.change.ChangeMetaData;
+import liquibase.change.DatabaseChange;
+import liquibase.change.core.CreateIndexChange;
+import liquibase.database.Database;
+import liquibase.executor.ExecutorService;
+import liquibase.executor.LoggingExecutor;
+import liquibase.sql.Sql;
+import liquibase.sqlgenerator.SqlGeneratorFactory;
+import liquibase.statement.SqlStatement;
+import liquibase.statement.core.CreateIndexStatement;
+import liquibase.statement.core.RawSqlStatement;
+
+/**
+ * Replacement of the createIndex change that builds the index without blocking the writes of the
+ * table if online DDL is enabled for the changeSet. PostgreSQL uses
+ * <code>CREATE INDEX CONCURRENTLY</code> outside of the transaction, MySQL and MariaDB use the
+ * in-place algorithm without locking and Oracle uses the <code>ONLINE</code> keyword. On other
+ * databases the index is created as usual.
+ */
+@DatabaseChange(name = "createIndex",
+    description = "Creates an index on an existing column or set of columns. The index is built"
+        + " online if it is enabled for the changeSet.",
+    priority = ChangeMetaData.PRIORITY_DEFAULT + 1, appliesTo = "index")
+public class OnlineCreateIndexChange extends CreateIndexChange {
+
+  private static final Pattern CREATE_INDEX_PATTERN =
+      Pattern.compile("^(CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+)", Pattern.CASE_INSENSITIVE);
+
+  @Override
+  public SqlStatement[] generateStatements(final Database database) {
+    SqlStatement[] statements = super.generateStatements(database);
+    if (OnlineDdlSettings.get(database, getChangeSet()) == null) {
+      return statements;
+    }
+
+    boolean loggingOnly =
+        ExecutorService.getInstance().getExecutor(database) instanceof LoggingExecutor;
+    SqlStatement[] result = new SqlStatement[statements.length];
+    for (int i = 0; i < statements.length; i++) {
+      result[i] = statements[i];
+      if (statements[i] instanceof CreateIndexStatement) {
+        result[i] = toOnlineStatement(statements[i], database, loggingOnly);
+      }
+    }
+    return result;
+  }
+
+  private SqlStatement toOnlineStatement(final SqlStatement statement, final Database database,
+      final boolean loggingOnly) {
+    Sql[] sqls = SqlGeneratorFactory.getInstance().generateSql(statement, database);
+    if (sqls.length != 1) {
+      return statement;
+    }
+    String sql = sqls[0].toSql();
+
+    switch (database.getShortName()) {
+      case "postgresql":
+        Matcher matcher = CREATE_INDEX_PATTERN.matcher(sql);
+        if (!matcher.find()) {
+          return statement;
+        }
+        String concurrentSql = matcher.replaceFirst("$1CONCURRENTLY ");
+        if (loggingOnly) {
+          return new RawSqlStatement(concurrentSql);
+        }
+        return new NonTransactionalSqlStatement(database, concurrentSql);
+      case "mysql":
+      case "mariadb":
+        return new RawSqlStatement(sql + " ALGORITHM=INPLACE LOCK=NONE");
+      case "oracle":
+        return new RawSqlStatement(sql + " ONLINE");
+      default:
+        return statement;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.WeakHashMap;
+
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.database.Database;
+
+/**
+ * Settings of the online DDL mode that are registered for a database while the changelog of a
+ * capability that opted in is applied. The online versions of the changes look up the settings
+ * when they generate their statements and fall back to the original behavior if there are none.
+ */
+final class OnlineDdlSettings {
+
+  private static int installCount;
+
+  private static final Map<Database, OnlineDdlSettings> SETTINGS =
+      Collections.synchronizedMap(new WeakHashMap<Database, OnlineDdlSettings>());
+
+  /**
+   * Returns the settings that apply to a changeSet on the database.
+   *
+   * @return The settings or <code>null</code> if the changeSet should be applied as usual.
+   */
+  static OnlineDdlSettings get(final Database database, final ChangeSet changeSet) {
+    OnlineDdlSettings settings = SETTINGS.get(database);
+    if (settings == null) {
+      return null;
+    }
+    if (settings.allChangeSets || (changeSet != null && !changeSet.isRunInTransaction())) {
+      return settings;
+    }
+    return null;
+  }
+
+  /**
+   * Registers the online versions of the changes into Liquibase for a component that applies
+   * changelogs with online DDL. It must be called before the changelogs are parsed. The changes
+   * are registered only once, no matter how many components use them.
+   */
+  static synchronized void install() {
+    if (installCount++ == 0) {
+      ChangeFactory.getInstance().register(OnlineAddColumnChange.class);
+      ChangeFactory.getInstance().register(OnlineCreateIndexChange.class);
+    }
+  }
+
+  /**
+   * Enables the online DDL mode for the database until {@link #unregister(Database)} is called.
+   */
+  static void register(final Database database, final OnlineDdlSettings settings) {
+    SETTINGS.put(database, settings);
+  }
+
+  private static void removeChange(final String name,
+      final Class<? extends Change> changeClass) {
+    SortedSet<Class<? extends Change>> changeClasses =
+        ChangeFactory.getInstance().getRegistry().get(name);
+    if (changeClasses != null) {
+      changeClasses.remove(changeClass);
+    }
+  }
+
+  /**
+   * Removes the online versions of the changes from Liquibase when the last component that used
+   * them does not need them anymore. The original changes stay registered.
+   */
+  static synchronized void uninstall() {
+    if (--installCount == 0) {
+      removeChange("addColumn", OnlineAddColumnChange.class);
+      removeChange("createIndex", OnlineCreateIndexChange.class);
+    }
+  }
+
+  static void unregister(final Database database) {
+    SETTINGS.remove(database);
+  }
+
+  private final boolean allChangeSets;
+
+  private final int chunkSize;
+
+  private final long throttleMillis;
+
+  /**
+   * Constructor.
+   *
+   * @param allChangeSets
+   *          Whether every changeSet is applied online or only the ones that are not run in a
+   *          transaction.
+   * @param chunkSize
+   *          The maximum number of rows that a backfill updates in one transaction.
+   * @param throttleMillis
+   *          The time to wait between two chunks of a backfill.
+   */
+  OnlineDdlSettings(final boolean allChangeSets, final int chunkSize,
+      final long throttleMillis) {
+    this.allChangeSets = allChangeSets;
+    this.chunkSize = Math.max(1, chunkSize);
+    this.throttleMillis = throttleMillis;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public long getThrottleMillis() {
+    return throttleMillis;
+  }
+}
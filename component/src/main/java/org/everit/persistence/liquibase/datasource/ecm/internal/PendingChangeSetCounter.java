@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.change.CheckSum;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.filter.ChangeSetFilter;
+import liquibase.changelog.filter.ContextChangeSetFilter;
+import liquibase.changelog.filter.DbmsChangeSetFilter;
+import liquibase.changelog.filter.LabelChangeSetFilter;
+import liquibase.database.Database;
+
+/**
+ * Counts the changeSets that an update would execute without taking the changelog lock. The
+ * changelog table is read only once, no matter how many changelogs are checked. A changeSet that
+ * was changed since it was executed counts as pending as well, even if it does not run on change,
+ * so the update validates the changelog and reports the change as Liquibase does.
+ */
+class PendingChangeSetCounter {
+
+  private static final String COLUMN_AUTHOR = "AUTHOR";
+
+  private static final String COLUMN_FILENAME = "FILENAME";
+
+  private static final String COLUMN_ID = "ID";
+
+  private static final String COLUMN_MD5SUM = "MD5SUM";
+
+  private static String createKey(final ChangeSet changeSet) {
+    return createKey(changeSet.getFilePath(), changeSet.getId(), changeSet.getAuthor());
+  }
+
+  private static String createKey(final String filePath, final String id, final String author) {
+    String normalizedPath = filePath.replace('\\', '/').replaceFirst("^classpath:", "");
+    return normalizedPath.toLowerCase() + "::" + id.toLowerCase() + "::"
+        + author.toLowerCase();
+  }
+
+  private boolean alwaysRunFound;
+
+  private final Connection connection;
+
+  private final Database database;
+
+  /**
+   * The checkSums of the executed changeSets by their keys.
+   */
+  private Map<String, String> ranChangeSets;
+
+  PendingChangeSetCounter(final Connection connection, final Database database) {
+    this.connection = connection;
+    this.database = database;
+  }
+
+  /**
+   * Counts the changeSets of the changelog that match the contexts, labels and database and are
+   * either not executed yet, always run or have a different checkSum than at their execution. The
+   * checkSums that are needed for the comparison are calculated together, before the comparison,
+   * and only if the cached changelog does not know them yet.
+   */
+  public int count(final CachedChangeLog changeLog, final Contexts contexts,
+      final LabelExpression labelExpression) throws SQLException {
+    if (ranChangeSets == null) {
+      ranChangeSets = readRanChangeSets();
+    }
+
+    ChangeSetFilter[] filters = new ChangeSetFilter[] {
+        new ContextChangeSetFilter(contexts),
+        new LabelChangeSetFilter(labelExpression),
+        new DbmsChangeSetFilter(database) };
+
+    List<ChangeSet> acceptedChangeSets = new ArrayList<>();
+    List<ChangeSet> checkSumChangeSets = new ArrayList<>();
+    for (ChangeSet changeSet : changeLog.getChangeLog().getChangeSets()) {
+      if (isAccepted(changeSet, filters)) {
+        acceptedChangeSets.add(changeSet);
+        alwaysRunFound |= changeSet.isAlwaysRun();
+        if (!changeSet.isAlwaysRun() && ranChangeSets.get(createKey(changeSet)) != null) {
+          checkSumChangeSets.add(changeSet);
+        }
+      }
+    }
+    changeLog.computeCheckSums(checkSumChangeSets);
+
+    int pendingCount = 0;
+    for (ChangeSet changeSet : acceptedChangeSets) {
+      if (isPending(changeLog, changeSet)) {
+        pendingCount++;
+      }
+    }
+    return pendingCount;
+  }
+
+  private String escapeColumnName(final String columnName) {
+    return database.escapeColumnName(database.getLiquibaseCatalogName(),
+        database.getLiquibaseSchemaName(), database.getDatabaseChangeLogTableName(), columnName);
+  }
+
+  private boolean isAccepted(final ChangeSet changeSet, final ChangeSetFilter[] filters) {
+    for (ChangeSetFilter filter : filters) {
+      if (!filter.accepts(changeSet).isAccepted()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether any of the counted changelogs has a changeSet that runs at every update.
+   */
+  public boolean isAlwaysRunFound() {
+    return alwaysRunFound;
+  }
+
+  private boolean isPending(final CachedChangeLog changeLog, final ChangeSet changeSet) {
+    String key = createKey(changeSet);
+    if (!ranChangeSets.containsKey(key) || changeSet.isAlwaysRun()) {
+      return true;
+    }
+    String storedCheckSum = ranChangeSets.get(key);
+    if (storedCheckSum == null) {
+      return changeSet.isRunOnChange();
+    }
+    if (storedCheckSum.equals(changeLog.getCheckSum(changeSet))) {
+      return false;
+    }
+    // Either runs again or the validation of the update fails unless the checkSum is allowed
+    return changeSet.isRunOnChange()
+        || !changeSet.isCheckSumValid(CheckSum.parse(storedCheckSum));
+  }
+
+  private Map<String, String> readRanChangeSets() throws SQLException {
+    Map<String, String> result = new HashMap<>();
+    String tableName = database.getDatabaseChangeLogTableName();
+    if (!ChangeLogFingerprintStore.tableExists(connection, database, tableName)) {
+      return result;
+    }
+
+    String sql = "SELECT " + escapeColumnName(COLUMN_FILENAME) + ", "
+        + escapeColumnName(COLUMN_ID) + ", " + escapeColumnName(COLUMN_AUTHOR) + ", "
+        + escapeColumnName(COLUMN_MD5SUM) + " FROM " + database.escapeTableName(
+            database.getLiquibaseCatalogName(), database.getLiquibaseSchemaName(), tableName);
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(sql)) {
+      while (resultSet.next()) {
+        result.put(createKey(resultSet.getString(1), resultSet.getString(2),
+            resultSet.getString(3)), resultSet.getString(4));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.WeakHashMap;
+
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.change.ChangeMetaData;
+import liquibase.change.DatabaseChange;
+import liquibase.change.core.LoadDataChange;
+import liquibase.change.core.LoadDataColumnConfig;
+import liquibase.database.Database;
+import liquibase.executor.ExecutorService;
+import liquibase.executor.LoggingExecutor;
+import liquibase.statement.SqlStatement;
+
+/**
+ * Replacement of the loadData change that inserts the rows while reading the CSV file instead of
+ * generating an insert statement for every row in advance. The rows are written in chunks with a
+ * prepared statement, so the heap usage does not depend on the size of the file. Streaming is
+ * used only for the databases that are registered with a chunk size and only if every column has
+ * a simple type. In every other case the change works as the original one.
+ */
+@DatabaseChange(name = StreamingLoadDataChange.CHANGE_NAME,
+    description = "Loads data from a CSV file into an existing table. The rows are streamed if it"
+        + " is enabled for the database.",
+    priority = ChangeMetaData.PRIORITY_DEFAULT + 1, appliesTo = "table")
+public class StreamingLoadDataChange extends LoadDataChange {
+
+  private static final Map<Database, Integer> CHUNK_SIZES =
+      Collections.synchronizedMap(new WeakHashMap<Database, Integer>());
+
+  private static final String CHANGE_NAME = "loadData";
+
+  private static int installCount;
+
+  private static final Set<String> STREAMABLE_TYPES = new HashSet<>(
+      Arrays.asList("BOOLEAN", "DATE", "NUMERIC", "SKIP", "STRING"));
+
+  /**
+   * Registers the change into Liquibase for a component that enables streaming. It must be called
+   * before the changelogs are parsed. The change is registered only once, no matter how many
+   * components enable streaming.
+   */
+  static synchronized void install() {
+    if (installCount++ == 0) {
+      ChangeFactory.getInstance().register(StreamingLoadDataChange.class);
+    }
+  }
+
+  /**
+   * Enables streaming for the database. The registration is held weakly, so it disappears with
+   * the database instance.
+   */
+  static void register(final Database database, final int chunkSize) {
+    CHUNK_SIZES.put(database, chunkSize);
+  }
+
+  @Override
+  public SqlStatement[] generateStatements(final Database database) {
+    Integer chunkSize = CHUNK_SIZES.get(database);
+    if (chunkSize == null || !isStreamable()
+        || ExecutorService.getInstance().getExecutor(database) instanceof LoggingExecutor) {
+      return super.generateStatements(database);
+    }
+    return new SqlStatement[] { new StreamingLoadDataStatement(this, database, chunkSize) };
+  }
+
+  /**
+   * Removes the change from Liquibase when the last component that enabled streaming does not
+   * need it anymore. The original loadData change stays registered.
+   */
+  static synchronized void uninstall() {
+    if (--installCount == 0) {
+      SortedSet<Class<? extends Change>> changeClasses =
+          ChangeFactory.getInstance().getRegistry().get(CHANGE_NAME);
+      if (changeClasses != null) {
+        changeClasses.remove(StreamingLoadDataChange.class);
+      }
+    }
+  }
+
+  private boolean isStreamable() {
+    if (getColumns() == null) {
+      return true;
+    }
+    for (LoadDataColumnConfig column : getColumns()) {
+      if (column.getType() != null && !STREAMABLE_TYPES.contains(column.getType().toUpperCase())) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
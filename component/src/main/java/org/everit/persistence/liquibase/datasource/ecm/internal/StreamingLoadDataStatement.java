@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import liquibase.change.core.LoadDataChange;
+import liquibase.change.core.LoadDataColumnConfig;
+import liquibase.database.Database;
+import liquibase.database.PreparedStatementFactory;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.UnexpectedLiquibaseException;
+import liquibase.statement.AbstractSqlStatement;
+import liquibase.statement.ExecutablePreparedStatement;
+import liquibase.structure.core.Catalog;
+import liquibase.structure.core.Schema;
+import liquibase.structure.core.Table;
+import liquibase.util.ISODateFormat;
+import liquibase.util.csv.CSVReader;
+
+/**
+ * Statement that reads the CSV file of a loadData change line by line and inserts the rows with
+ * JDBC batches of a limited size. The values of the columns that have no type in the changelog
+ * are bound by the type of the table column, so they are converted the same way as the literals
+ * that the original change generates.
+ */
+class StreamingLoadDataStatement extends AbstractSqlStatement
+    implements ExecutablePreparedStatement {
+
+  /**
+   * A column of the CSV file that is inserted into the table.
+   */
+  private static final class Column {
+
+    private final int csvIndex;
+
+    private final String name;
+
+    private final String type;
+
+    Column(final int csvIndex, final String name, final String type) {
+      this.csvIndex = csvIndex;
+      this.name = name;
+      this.type = (type == null) ? null : type.toUpperCase();
+    }
+  }
+
+  private final LoadDataChange change;
+
+  private final int chunkSize;
+
+  private final Database database;
+
+  StreamingLoadDataStatement(final LoadDataChange change, final Database database,
+      final int chunkSize) {
+    this.change = change;
+    this.database = database;
+    this.chunkSize = chunkSize;
+  }
+
+  private void bind(final PreparedStatement statement, final int parameterIndex,
+      final Column column, final String value) throws SQLException, ParseException {
+    boolean isString = "STRING".equals(column.type);
+    if (value == null || "NULL".equalsIgnoreCase(value) || (!isString && value.isEmpty())) {
+      statement.setNull(parameterIndex, sqlType(column.type));
+      return;
+    }
+    switch (column.type) {
+      case "BOOLEAN":
+        statement.setBoolean(parameterIndex, Boolean.parseBoolean(value));
+        break;
+      case "DATE":
+        statement.setObject(parameterIndex, new ISODateFormat().parse(value));
+        break;
+      case "NUMERIC":
+        statement.setBigDecimal(parameterIndex, new BigDecimal(value));
+        break;
+      default:
+        statement.setString(parameterIndex, value);
+        break;
+    }
+  }
+
+  private String createInsertSql(final List<Column> columns) {
+    String catalogName = change.getCatalogName();
+    String schemaName = change.getSchemaName();
+    String tableName = change.getTableName();
+
+    StringBuilder sql = new StringBuilder("INSERT INTO ")
+        .append(database.escapeTableName(catalogName, schemaName, tableName)).append(" (");
+    StringBuilder values = new StringBuilder();
+    for (int i = 0; i < columns.size(); i++) {
+      if (i > 0) {
+        sql.append(", ");
+        values.append(", ");
+      }
+      sql.append(database.escapeColumnName(catalogName, schemaName, tableName,
+          columns.get(i).name));
+      values.append('?');
+    }
+    return sql.append(") VALUES (").append(values).append(')').toString();
+  }
+
+  @Override
+  public void execute(final PreparedStatementFactory factory) throws DatabaseException {
+    try (CSVReader reader = change.getCSVReader()) {
+      String[] headers = reader.readNext();
+      if (headers == null) {
+        throw new UnexpectedLiquibaseException("Data file " + change.getFile() + " was empty");
+      }
+      List<Column> declaredColumns = resolveColumns(headers);
+
+      try (PreparedStatement statement = factory.create(createInsertSql(declaredColumns))) {
+        List<Column> columns =
+            resolveUntypedColumns(statement.getConnection().getMetaData(), declaredColumns);
+        int batchedCount = 0;
+        int lineNumber = 1;
+        String[] line = reader.readNext();
+        while (line != null) {
+          lineNumber++;
+          if (!isEmpty(line)) {
+            if (line.length != headers.length) {
+              throw new UnexpectedLiquibaseException("CSV file " + change.getFile() + " Line "
+                  + lineNumber + " has " + line.length + " values defined, Header has "
+                  + headers.length + ". Numbers MUST be equal (check for unquoted string with"
+                  + " embedded commas)");
+            }
+            for (int i = 0; i < columns.size(); i++) {
+              Column column = columns.get(i);
+              bind(statement, i + 1, column, line[column.csvIndex]);
+            }
+            statement.addBatch();
+            batchedCount++;
+            if (batchedCount >= chunkSize) {
+              statement.executeBatch();
+              batchedCount = 0;
+            }
+          }
+          line = reader.readNext();
+        }
+        if (batchedCount > 0) {
+          statement.executeBatch();
+        }
+      }
+    } catch (IOException | SQLException | ParseException e) {
+      throw new DatabaseException("Could not load data file " + change.getFile(), e);
+    }
+  }
+
+  private LoadDataColumnConfig findColumnConfig(final int index, final String header) {
+    if (change.getColumns() == null) {
+      return null;
+    }
+    for (LoadDataColumnConfig config : change.getColumns()) {
+      if (config.getIndex() != null && config.getIndex().intValue() == index) {
+        return config;
+      }
+      if (config.getHeader() != null && config.getHeader().equalsIgnoreCase(header)) {
+        return config;
+      }
+      if (config.getName() != null && config.getName().equalsIgnoreCase(header)) {
+        return config;
+      }
+    }
+    return null;
+  }
+
+  private boolean isEmpty(final String[] line) {
+    return line.length == 0 || (line.length == 1 && line[0].trim().isEmpty());
+  }
+
+  private Map<String, String> readColumnTypes(final DatabaseMetaData metaData)
+      throws SQLException {
+    String catalogName = (change.getCatalogName() == null) ? null
+        : database.correctObjectName(change.getCatalogName(), Catalog.class);
+    String schemaName = (change.getSchemaName() == null) ? database.getDefaultSchemaName()
+        : database.correctObjectName(change.getSchemaName(), Schema.class);
+    String tableName = database.correctObjectName(change.getTableName(), Table.class);
+
+    Map<String, String> columnTypes = new HashMap<>();
+    try (ResultSet resultSet = metaData.getColumns(catalogName, schemaName, tableName, null)) {
+      while (resultSet.next()) {
+        columnTypes.put(resultSet.getString("COLUMN_NAME").toUpperCase(),
+            toColumnType(resultSet.getInt("DATA_TYPE")));
+      }
+    }
+    return columnTypes;
+  }
+
+  private List<Column> resolveColumns(final String[] headers) {
+    List<Column> columns = new ArrayList<>();
+    for (int i = 0; i < headers.length; i++) {
+      String header = headers[i].trim();
+      LoadDataColumnConfig config = findColumnConfig(i, header);
+      if (config == null) {
+        columns.add(new Column(i, header, null));
+      } else if (!"SKIP".equalsIgnoreCase(config.getType())) {
+        String name = (config.getName() == null) ? header : config.getName();
+        columns.add(new Column(i, name, config.getType()));
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Gives the columns that have no type in the changelog the type of the table column. The table
+   * metadata is read only if there is such a column. A column that is not found in the metadata
+   * is bound as a string.
+   */
+  private List<Column> resolveUntypedColumns(final DatabaseMetaData metaData,
+      final List<Column> declaredColumns) throws SQLException {
+    Map<String, String> columnTypes = null;
+    List<Column> columns = new ArrayList<>(declaredColumns.size());
+    for (Column column : declaredColumns) {
+      if (column.type != null) {
+        columns.add(column);
+      } else {
+        if (columnTypes == null) {
+          columnTypes = readColumnTypes(metaData);
+        }
+        String columnType = columnTypes.get(column.name.toUpperCase());
+        columns.add(new Column(column.csvIndex, column.name,
+            (columnType == null) ? "STRING" : columnType));
+      }
+    }
+    return columns;
+  }
+
+  private int sqlType(final String type) {
+    switch (type) {
+      case "BOOLEAN":
+        return Types.BOOLEAN;
+      case "DATE":
+        return Types.TIMESTAMP;
+      case "NUMERIC":
+        return Types.NUMERIC;
+      default:
+        return Types.VARCHAR;
+    }
+  }
+
+  private String toColumnType(final int sqlType) {
+    switch (sqlType) {
+      case Types.BIT:
+      case Types.BOOLEAN:
+        return "BOOLEAN";
+      case Types.DATE:
+      case Types.TIME:
+      case Types.TIMESTAMP:
+        return "DATE";
+      case Types.BIGINT:
+      case Types.DECIMAL:
+      case Types.DOUBLE:
+      case Types.FLOAT:
+      case Types.INTEGER:
+      case Types.NUMERIC:
+      case Types.REAL:
+      case Types.SMALLINT:
+      case Types.TINYINT:
+        return "NUMERIC";
+      default:
+        return "STRING";
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import liquibase.database.Database;
+import liquibase.exception.LockException;
+import liquibase.lockservice.DatabaseChangeLogLock;
+import liquibase.lockservice.StandardLockService;
+
+/**
+ * Lock provider that uses the row of the Liquibase changelog lock table. It works on every
+ * database but the lock remains if the process dies while holding it.
+ */
+class TableMigrationLockProvider implements MigrationLockProvider {
+
+  private final StandardLockService lockService;
+
+  TableMigrationLockProvider(final Database database) {
+    lockService = new StandardLockService();
+    lockService.setDatabase(database);
+  }
+
+  @Override
+  public String describeOwner() {
+    try {
+      StringBuilder sb = new StringBuilder();
+      for (DatabaseChangeLogLock lock : lockService.listLocks()) {
+        sb.append(lock.getLockedBy()).append(" since ").append(lock.getLockGranted()).append(' ');
+      }
+      return sb.toString();
+    } catch (LockException e) {
+      return "unknown";
+    }
+  }
+
+  @Override
+  public boolean isLockedByOthers() throws LockException {
+    return lockService.listLocks().length > 0;
+  }
+
+  @Override
+  public void release() throws LockException {
+    lockService.releaseLock();
+  }
+
+  @Override
+  public boolean tryAcquire() throws LockException {
+    return lockService.acquireLock();
+  }
+}
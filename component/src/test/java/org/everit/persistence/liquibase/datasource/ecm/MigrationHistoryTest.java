@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests writing and reading back the history file of the changeSet executions.
+ */
+public class MigrationHistoryTest {
+
+  private static ChangeSetExecution createExecution(final String id, final long durationMillis) {
+    return new ChangeSetExecution("myApp", "/META-INF/liquibase/changelog.xml", id, "everit",
+        durationMillis, "EXECUTED", 1);
+  }
+
+  private static MigrationMetrics createMetrics(final ChangeSetExecution... executions) {
+    return new MigrationMetrics("pid", true, new HashMap<String, Long>(),
+        Arrays.asList(executions), executions.length, 0, -1, -1);
+  }
+
+  private static List<String> ids(final List<ChangeSetExecution> executions) {
+    List<String> ids = new ArrayList<>();
+    for (ChangeSetExecution execution : executions) {
+      ids.add(execution.getId());
+    }
+    return ids;
+  }
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path historyFile(final String name) {
+    return temporaryFolder.getRoot().toPath().resolve(name);
+  }
+
+  private long measureRunSize() throws IOException {
+    Path file = historyFile("measure.log");
+    new MigrationHistory(file.toString(), Long.MAX_VALUE).append(
+        createMetrics(createExecution("0", 0)));
+    return Files.size(file);
+  }
+
+  @Test
+  public void testEscapedFieldsReadBack() throws IOException {
+    String capabilityName = "quote\" backslash\\ newline\n tab\t control\u0001 accent\u00e9";
+    ChangeSetExecution execution = new ChangeSetExecution(capabilityName, "{file},:", "id\r",
+        null, 1, null, 2);
+    MigrationHistory history =
+        new MigrationHistory(historyFile("history.log").toString(), Long.MAX_VALUE);
+    history.append(createMetrics(execution));
+
+    List<ChangeSetExecution> executions = history.findSlowestChangeSets(1);
+    Assert.assertEquals(1, executions.size());
+    ChangeSetExecution readExecution = executions.get(0);
+    Assert.assertEquals(capabilityName, readExecution.getCapabilityName());
+    Assert.assertEquals("{file},:", readExecution.getFilePath());
+    Assert.assertEquals("id\r", readExecution.getId());
+    Assert.assertNull(readExecution.getAuthor());
+    Assert.assertEquals(1, readExecution.getDurationMillis());
+    Assert.assertNull(readExecution.getOutcome());
+    Assert.assertEquals(2, readExecution.getStatementCount());
+  }
+
+  @Test
+  public void testIncompleteLineSkipped() throws IOException {
+    Path file = historyFile("history.log");
+    MigrationHistory history = new MigrationHistory(file.toString(), Long.MAX_VALUE);
+    history.append(createMetrics(createExecution("1", 1)));
+    Files.write(file, "{\"time\":1,\"id\":\"trunc".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    Assert.assertEquals(Arrays.asList("1"), ids(history.findSlowestChangeSets(10)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeLimitRejected() throws IOException {
+    new MigrationHistory(historyFile("history.log").toString(), Long.MAX_VALUE)
+        .findSlowestChangeSets(-1);
+  }
+
+  @Test
+  public void testRotationKeepsTwoFiles() throws IOException {
+    long runSize = measureRunSize();
+    Path file = historyFile("history.log");
+    Path backupFile = historyFile("history.log.1");
+    // One run fits into the file, two runs do not
+    MigrationHistory history = new MigrationHistory(file.toString(), runSize * 3 / 2);
+
+    history.append(createMetrics(createExecution("1", 1)));
+    Assert.assertFalse(Files.exists(backupFile));
+    history.append(createMetrics(createExecution("2", 2)));
+    Assert.assertTrue(Files.exists(backupFile));
+    history.append(createMetrics(createExecution("3", 3)));
+
+    Assert.assertEquals(runSize, Files.size(file));
+    Assert.assertEquals(runSize, Files.size(backupFile));
+    Assert.assertEquals(Arrays.asList("3", "2"), ids(history.findSlowestChangeSets(10)));
+  }
+
+  @Test
+  public void testRunLargerThanMaxFileSizeWrittenCompletely() throws IOException {
+    long runSize = measureRunSize();
+    Path file = historyFile("history.log");
+    MigrationHistory history = new MigrationHistory(file.toString(), runSize);
+
+    history.append(createMetrics(createExecution("1", 1), createExecution("2", 2)));
+
+    Assert.assertEquals(runSize * 2, Files.size(file));
+    Assert.assertEquals(Arrays.asList("2", "1"), ids(history.findSlowestChangeSets(10)));
+  }
+
+  @Test
+  public void testSizeCapKept() throws IOException {
+    long runSize = measureRunSize();
+    long maxFileSize = runSize * 3;
+    Path file = historyFile("history.log");
+    MigrationHistory history = new MigrationHistory(file.toString(), maxFileSize);
+
+    for (int i = 0; i < 10; i++) {
+      history.append(createMetrics(createExecution(String.valueOf(i), i)));
+      Assert.assertTrue(Files.size(file) <= maxFileSize);
+    }
+  }
+
+  @Test
+  public void testSlowestChangeSets() throws IOException {
+    MigrationHistory history =
+        new MigrationHistory(historyFile("history.log").toString(), Long.MAX_VALUE);
+    history.append(createMetrics(createExecution("a", 5), createExecution("b", 1)));
+    history.append(createMetrics(createExecution("c", 9), createExecution("d", 3)));
+
+    Assert.assertEquals(Arrays.asList("c", "a"), ids(history.findSlowestChangeSets(2)));
+    Assert.assertEquals(Arrays.asList("c", "a", "d", "b"),
+        ids(history.findSlowestChangeSets(Integer.MAX_VALUE)));
+    Assert.assertTrue(history.findSlowestChangeSets(0).isEmpty());
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import liquibase.database.Database;
+import liquibase.database.core.H2Database;
+import liquibase.database.jvm.JdbcConnection;
+
+/**
+ * Tests the advisory lock provider on an embedded H2 database that stands in for MySQL. The
+ * GET_LOCK and RELEASE_LOCK functions of MySQL are defined as aliases of the static methods of
+ * this class that keep the owner session of every lock.
+ */
+public class AdvisoryMigrationLockProviderTest {
+
+  private static final ConcurrentMap<String, Integer> LOCK_OWNERS = new ConcurrentHashMap<>();
+
+  private static final String SCOPE = "PUBLIC.PUBLIC.DATABASECHANGELOGLOCK";
+
+  /**
+   * Implementation of the GET_LOCK function of MySQL that does not wait.
+   */
+  public static int getLock(final Connection connection, final String name, final int timeout)
+      throws SQLException {
+    Integer sessionId = getSessionId(connection);
+    Integer owner = LOCK_OWNERS.putIfAbsent(name, sessionId);
+    return (owner == null || owner.equals(sessionId)) ? 1 : 0;
+  }
+
+  private static Integer getSessionId(final Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT SESSION_ID()")) {
+      resultSet.next();
+      return resultSet.getInt(1);
+    }
+  }
+
+  /**
+   * Implementation of the RELEASE_LOCK function of MySQL.
+   */
+  public static int releaseLock(final Connection connection, final String name)
+      throws SQLException {
+    return LOCK_OWNERS.remove(name, getSessionId(connection)) ? 1 : 0;
+  }
+
+  private final List<Connection> connections = new ArrayList<>();
+
+  private Database createAdvisoryLockDatabase() throws SQLException {
+    H2Database database = new H2Database() {
+      @Override
+      public String getShortName() {
+        return "mysql";
+      }
+    };
+    database.setConnection(new JdbcConnection(openConnection()));
+    return database;
+  }
+
+  private Database createDatabase() throws SQLException {
+    H2Database database = new H2Database();
+    database.setConnection(new JdbcConnection(openConnection()));
+    return database;
+  }
+
+  private Connection openConnection() throws SQLException {
+    Connection connection =
+        DriverManager.getConnection("jdbc:h2:mem:advisoryLockTest;DB_CLOSE_DELAY=-1");
+    connections.add(connection);
+    return connection;
+  }
+
+  @Before
+  public void setUp() throws SQLException {
+    try (Statement statement = openConnection().createStatement()) {
+      statement.execute("CREATE ALIAS IF NOT EXISTS GET_LOCK FOR \""
+          + AdvisoryMigrationLockProviderTest.class.getName() + ".getLock\"");
+      statement.execute("CREATE ALIAS IF NOT EXISTS RELEASE_LOCK FOR \""
+          + AdvisoryMigrationLockProviderTest.class.getName() + ".releaseLock\"");
+    }
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    try (Statement statement = connections.get(0).createStatement()) {
+      statement.execute("DROP ALL OBJECTS");
+    }
+    for (Connection connection : connections) {
+      connection.close();
+    }
+    connections.clear();
+    LOCK_OWNERS.clear();
+  }
+
+  @Test
+  public void testAdvisoryLockExcludesOtherSessions() throws Exception {
+    AdvisoryMigrationLockProvider first =
+        new AdvisoryMigrationLockProvider(createAdvisoryLockDatabase(), SCOPE, false);
+    AdvisoryMigrationLockProvider second =
+        new AdvisoryMigrationLockProvider(createAdvisoryLockDatabase(), SCOPE, false);
+
+    Assert.assertTrue(first.tryAcquire());
+    Assert.assertFalse(second.tryAcquire());
+    Assert.assertTrue(second.isLockedByOthers());
+
+    first.release();
+    Assert.assertFalse(second.isLockedByOthers());
+    Assert.assertTrue(second.tryAcquire());
+    second.release();
+  }
+
+  @Test
+  public void testAdvisoryLockIgnoresChangeLogLockTable() throws Exception {
+    TableMigrationLockProvider tableLock = new TableMigrationLockProvider(createDatabase());
+    AdvisoryMigrationLockProvider advisoryLock =
+        new AdvisoryMigrationLockProvider(createAdvisoryLockDatabase(), SCOPE, false);
+
+    // A stale lock in the table does not block the advisory lock
+    Assert.assertTrue(tableLock.tryAcquire());
+    Assert.assertTrue(advisoryLock.tryAcquire());
+    advisoryLock.release();
+    tableLock.release();
+  }
+
+  @Test
+  public void testTableAwareAdvisoryLockWaitsForChangeLogLockTable() throws Exception {
+    TableMigrationLockProvider tableLock = new TableMigrationLockProvider(createDatabase());
+    AdvisoryMigrationLockProvider advisoryLock =
+        new AdvisoryMigrationLockProvider(createAdvisoryLockDatabase(), SCOPE, true);
+
+    Assert.assertTrue(tableLock.tryAcquire());
+    Assert.assertFalse(advisoryLock.tryAcquire());
+    Assert.assertTrue(LOCK_OWNERS.isEmpty());
+
+    tableLock.release();
+    Assert.assertTrue(advisoryLock.tryAcquire());
+    advisoryLock.release();
+  }
+
+  @Test
+  public void testScopesDoNotExcludeEachOther() throws Exception {
+    AdvisoryMigrationLockProvider first =
+        new AdvisoryMigrationLockProvider(createAdvisoryLockDatabase(), SCOPE, false);
+    AdvisoryMigrationLockProvider second =
+        new AdvisoryMigrationLockProvider(createAdvisoryLockDatabase(), "OTHER." + SCOPE,
+            false);
+
+    Assert.assertTrue(first.tryAcquire());
+    Assert.assertTrue(second.tryAcquire());
+    first.release();
+    second.release();
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import liquibase.database.Database;
+import liquibase.database.core.H2Database;
+import liquibase.database.jvm.JdbcConnection;
+
+/**
+ * Tests that the stored fingerprint lets the migration skip an up-to-date schema until the
+ * changelog table changes.
+ */
+public class ChangeLogFingerprintStoreTest {
+
+  private static final String FINGERPRINT = "fingerprint";
+
+  private Connection connection;
+
+  private Database database;
+
+  private void addChangeLogRow(final String id) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("INSERT INTO DATABASECHANGELOG (ID) VALUES ('" + id + "')");
+    }
+  }
+
+  private ChangeLogFingerprintStore createStore() {
+    return new ChangeLogFingerprintStore(connection, database, "FINGERPRINT");
+  }
+
+  @Before
+  public void setUp() throws SQLException {
+    connection = DriverManager.getConnection("jdbc:h2:mem:fingerprintStoreTest");
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE DATABASECHANGELOG (ID VARCHAR(255))");
+    }
+    addChangeLogRow("1");
+    database = new H2Database();
+    database.setConnection(new JdbcConnection(connection));
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    connection.close();
+  }
+
+  @Test
+  public void testChangeLogChangeInvalidatesFingerprint() throws SQLException {
+    createStore().store(FINGERPRINT);
+
+    addChangeLogRow("2");
+    Assert.assertFalse(createStore().isUpToDate(FINGERPRINT));
+  }
+
+  @Test
+  public void testNotUpToDateWithoutStoredFingerprint() throws SQLException {
+    ChangeLogFingerprintStore store = createStore();
+    Assert.assertFalse(store.isUpToDate(FINGERPRINT));
+
+    store.store("other");
+    Assert.assertFalse(store.isUpToDate(FINGERPRINT));
+  }
+
+  @Test
+  public void testUpToDateAfterStore() throws SQLException {
+    createStore().store(FINGERPRINT);
+
+    ChangeLogFingerprintStore store = createStore();
+    Assert.assertTrue(store.isUpToDate(FINGERPRINT));
+    Assert.assertEquals(1, store.getLastChangeLogRowCount());
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Tests that the fingerprint of a changelog capability follows the changes of the changelog
+ * files. The bundle is simulated by a proxy that finds its entries in a temporary folder.
+ */
+public class ChangeLogFingerprintTest {
+
+  private static final AtomicLong BUNDLE_IDS = new AtomicLong();
+
+  private static final String RESOURCE_NAME = "/META-INF/liquibase/changelog.xml";
+
+  private long bundleId;
+
+  private long lastModified;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private String computeFingerprint() {
+    return new ChangeLogFingerprint().addCapability(createCapability()).toHexString();
+  }
+
+  private Bundle createBundle() {
+    final long currentBundleId = bundleId;
+    final long currentLastModified = lastModified;
+    return (Bundle) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { Bundle.class }, new InvocationHandler() {
+
+          @Override
+          public Object invoke(final Object proxy, final Method method, final Object[] args)
+              throws Throwable {
+            switch (method.getName()) {
+              case "findEntries":
+                return findEntries((String) args[0]);
+              case "getBundleId":
+                return currentBundleId;
+              case "getLastModified":
+                return currentLastModified;
+              case "getState":
+                return Bundle.ACTIVE;
+              case "getSymbolicName":
+                return "changelog.bundle";
+              case "getVersion":
+                return new Version(1, 0, 0);
+              default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+          }
+        });
+  }
+
+  private BundleCapability createCapability() {
+    final Bundle bundle = createBundle();
+    final BundleRevision revision = (BundleRevision) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] { BundleRevision.class },
+        new InvocationHandler() {
+
+          @Override
+          public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            if ("getBundle".equals(method.getName())) {
+              return bundle;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+
+    final Map<String, Object> attributes = new HashMap<>();
+    attributes.put(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG, "myApp");
+    attributes.put(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE, RESOURCE_NAME);
+    return (BundleCapability) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { BundleCapability.class }, new InvocationHandler() {
+
+          @Override
+          public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+              case "getAttributes":
+                return Collections.unmodifiableMap(attributes);
+              case "getRevision":
+                return revision;
+              default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+          }
+        });
+  }
+
+  private Enumeration<URL> findEntries(final String directory) throws IOException {
+    Path root = temporaryFolder.getRoot().toPath();
+    final List<URL> entries = new ArrayList<>();
+    Files.walkFileTree(root.resolve(directory.substring(1)), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+          throws IOException {
+        entries.add(file.toUri().toURL());
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return Collections.enumeration(entries);
+  }
+
+  private void newRevision() {
+    lastModified++;
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    bundleId = BUNDLE_IDS.incrementAndGet();
+    lastModified = 1;
+    writeFile("META-INF/liquibase/changelog.xml", "<databaseChangeLog/>");
+    writeFile("META-INF/liquibase/data.csv", "id\n1\n");
+  }
+
+  @Test
+  public void testChangeLogEditChangesFingerprint() throws IOException {
+    String fingerprint = computeFingerprint();
+    Assert.assertEquals(fingerprint, computeFingerprint());
+
+    writeFile("META-INF/liquibase/changelog.xml", "<databaseChangeLog></databaseChangeLog>");
+    newRevision();
+    Assert.assertNotEquals(fingerprint, computeFingerprint());
+  }
+
+  @Test
+  public void testDataFileEditChangesFingerprint() throws IOException {
+    String fingerprint = computeFingerprint();
+
+    writeFile("META-INF/liquibase/data.csv", "id\n2\n");
+    newRevision();
+    Assert.assertNotEquals(fingerprint, computeFingerprint());
+  }
+
+  @Test
+  public void testOtherFilesIgnored() throws IOException {
+    String fingerprint = computeFingerprint();
+
+    writeFile("META-INF/liquibase/Readme.class", "ignored");
+    writeFile("META-INF/liquibase/changelog.xml.idx", "ignored");
+    newRevision();
+    Assert.assertEquals(fingerprint, computeFingerprint());
+  }
+
+  @Test
+  public void testSameRevisionNotReadAgain() throws IOException {
+    String fingerprint = computeFingerprint();
+
+    // The files of a bundle revision cannot change, so the cached hash is used
+    writeFile("META-INF/liquibase/changelog.xml", "<databaseChangeLog></databaseChangeLog>");
+    Assert.assertEquals(fingerprint, computeFingerprint());
+  }
+
+  private void writeFile(final String path, final String content) throws IOException {
+    Path file = temporaryFolder.getRoot().toPath().resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+}
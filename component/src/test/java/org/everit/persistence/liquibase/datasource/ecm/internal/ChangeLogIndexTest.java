@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the search of changelog parameters in the changelog files.
+ */
+public class ChangeLogIndexTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SortedMap<String, URL> createFiles(final String... namesAndContents)
+      throws IOException {
+    SortedMap<String, URL> files = new TreeMap<>();
+    for (int i = 0; i < namesAndContents.length; i += 2) {
+      Path file = temporaryFolder.getRoot().toPath().resolve(namesAndContents[i]);
+      Files.write(file, namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+      files.put('/' + namesAndContents[i], file.toUri().toURL());
+    }
+    return files;
+  }
+
+  @Test
+  public void testParameterFound() throws IOException {
+    Assert.assertTrue(ChangeLogIndex.containsParameter(createFiles(
+        "changelog.xml", "<createTable tableName=\"a\"/>",
+        "included.xml", "<createTable schemaName=\"${database.defaultSchemaName}\"/>")));
+  }
+
+  @Test
+  public void testParameterFoundAcrossBufferBoundary() throws IOException {
+    // The dollar sign is the last byte of the first buffer
+    char[] padding = new char[8191];
+    Arrays.fill(padding, ' ');
+    Assert.assertTrue(ChangeLogIndex.containsParameter(
+        createFiles("changelog.xml", new String(padding) + "${schema}")));
+  }
+
+  @Test
+  public void testParameterInDataFileIgnored() throws IOException {
+    Assert.assertFalse(ChangeLogIndex.containsParameter(createFiles(
+        "changelog.xml", "<loadData file=\"data.csv\" tableName=\"a\"/>",
+        "data.csv", "price\n${price}\n")));
+  }
+
+  @Test
+  public void testParameterInIndexIgnored() throws IOException {
+    Assert.assertFalse(ChangeLogIndex.containsParameter(createFiles(
+        "changelog.xml", "<sql>SELECT '$' || '{'</sql>",
+        "changelog.xml" + ChangeLogIndex.INDEX_SUFFIX, "${")));
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Assert;
+import org.junit.Test;
+
+import liquibase.exception.LiquibaseException;
+
+/**
+ * Tests that the migrations of the component instances that use the same DataSource are run in
+ * batches by the threads that submitted them.
+ */
+public class MigrationCoordinatorTest {
+
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  /**
+   * Migration that records the thread that ran it.
+   */
+  private static class RecordingMigration implements MigrationCoordinator.Migration {
+
+    private final AtomicReference<Thread> migratingThread = new AtomicReference<>();
+
+    @Override
+    public void migrate(final MigrationCoordinator.Session session)
+        throws SQLException, LiquibaseException {
+      migratingThread.set(Thread.currentThread());
+    }
+  }
+
+  private void awaitWaiting(final Thread thread) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(Thread.State.WAITING, thread.getState());
+  }
+
+  private Thread startMigration(final JdbcDataSource dataSource,
+      final MigrationCoordinator.Migration migration) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          MigrationCoordinator.getInstance().migrate(dataSource, migration);
+        } catch (SQLException | LiquibaseException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void testLeadershipHandedOverAfterBatch() throws InterruptedException {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:migrationCoordinatorTest");
+
+    final CountDownLatch leaderStarted = new CountDownLatch(1);
+    final CountDownLatch followerQueued = new CountDownLatch(1);
+    RecordingMigration leaderMigration = new RecordingMigration() {
+      @Override
+      public void migrate(final MigrationCoordinator.Session session)
+          throws SQLException, LiquibaseException {
+        super.migrate(session);
+        leaderStarted.countDown();
+        try {
+          followerQueued.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new LiquibaseException(e);
+        }
+      }
+    };
+    RecordingMigration followerMigration = new RecordingMigration();
+
+    Thread leader = startMigration(dataSource, leaderMigration);
+    Assert.assertTrue(leaderStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    Thread follower = startMigration(dataSource, followerMigration);
+    // The follower is collected for the next batch while the batch of the leader runs
+    awaitWaiting(follower);
+    followerQueued.countDown();
+
+    leader.join(TIMEOUT_MILLIS);
+    follower.join(TIMEOUT_MILLIS);
+    Assert.assertFalse(leader.isAlive());
+    Assert.assertFalse(follower.isAlive());
+    Assert.assertSame(leader, leaderMigration.migratingThread.get());
+    Assert.assertSame(follower, followerMigration.migratingThread.get());
+  }
+}
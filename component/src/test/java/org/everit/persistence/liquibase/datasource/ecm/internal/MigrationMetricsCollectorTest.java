@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.everit.persistence.liquibase.datasource.ecm.LiquibaseDataSourceConstants;
+import org.everit.persistence.liquibase.datasource.ecm.MigrationMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the aggregation of the metrics that are collected by the parallel updates.
+ */
+public class MigrationMetricsCollectorTest {
+
+  private static final String PHASE = LiquibaseDataSourceConstants.MigrationPhase.CHANGELOG_PARSING;
+
+  @Test
+  public void testChangeLogRowCountsSummed() {
+    MigrationMetricsCollector collector = new MigrationMetricsCollector();
+    Assert.assertEquals(-1, collector.toMigrationMetrics("pid", true).getChangeLogRowCount());
+
+    collector.addChangeLogRowCount(3);
+    collector.addChangeLogRowCount(-1);
+    collector.addChangeLogRowCount(4);
+    Assert.assertEquals(7, collector.toMigrationMetrics("pid", true).getChangeLogRowCount());
+  }
+
+  @Test
+  public void testOverlappingPhasesCountedOnce() {
+    MigrationMetricsCollector collector = new MigrationMetricsCollector();
+    long phaseStartNanos = System.nanoTime() - TimeUnit.SECONDS.toNanos(10);
+    // Two threads that ran the phase at the same time
+    collector.addPhaseDuration(PHASE, phaseStartNanos);
+    collector.addPhaseDuration(PHASE, phaseStartNanos + TimeUnit.SECONDS.toNanos(5));
+
+    MigrationMetrics metrics = collector.toMigrationMetrics("pid", true);
+    long phaseDuration = metrics.getPhaseDurations().get(PHASE);
+    Assert.assertTrue(phaseDuration >= TimeUnit.SECONDS.toMillis(10));
+    Assert.assertTrue(phaseDuration < TimeUnit.SECONDS.toMillis(15));
+  }
+}
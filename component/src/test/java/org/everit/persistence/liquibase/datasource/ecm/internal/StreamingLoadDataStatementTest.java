@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.internal;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import liquibase.change.core.LoadDataChange;
+import liquibase.change.core.LoadDataColumnConfig;
+import liquibase.database.Database;
+import liquibase.database.PreparedStatementFactory;
+import liquibase.database.core.H2Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.resource.FileSystemResourceAccessor;
+
+/**
+ * Tests that the streamed rows of a loadData change are bound with the type of the table columns.
+ */
+public class StreamingLoadDataStatementTest {
+
+  /**
+   * Factory that records the setter that bound the parameters of the insert statement.
+   */
+  private static final class RecordingStatementFactory extends PreparedStatementFactory {
+
+    private final Map<Integer, String> setters = new TreeMap<>();
+
+    private final JdbcConnection connection;
+
+    RecordingStatementFactory(final JdbcConnection connection) {
+      super(connection);
+      this.connection = connection;
+    }
+
+    @Override
+    public PreparedStatement create(final String sql) throws DatabaseException {
+      final PreparedStatement statement;
+      try {
+        statement = connection.getUnderlyingConnection().prepareStatement(sql);
+      } catch (SQLException e) {
+        throw new DatabaseException(e);
+      }
+      return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+              if (method.getName().startsWith("set") && args != null && args.length == 2
+                  && args[0] instanceof Integer) {
+                setters.put((Integer) args[0], method.getName());
+              }
+              try {
+                return method.invoke(statement, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            }
+          });
+    }
+  }
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Connection connection;
+
+  private Database database;
+
+  private LoadDataChange createChange(final String csv) throws IOException {
+    Files.write(temporaryFolder.getRoot().toPath().resolve("data.csv"),
+        csv.getBytes(StandardCharsets.UTF_8));
+    StreamingLoadDataChange change = new StreamingLoadDataChange();
+    change.setResourceAccessor(
+        new FileSystemResourceAccessor(temporaryFolder.getRoot().getAbsolutePath()));
+    change.setRelativeToChangelogFile(false);
+    change.setFile("data.csv");
+    change.setTableName("loaded");
+    return change;
+  }
+
+  @Before
+  public void setUp() throws SQLException {
+    connection = DriverManager.getConnection("jdbc:h2:mem:streamingLoadDataTest");
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE loaded (id INT, amount DECIMAL(10, 2), code VARCHAR(20),"
+          + " active BOOLEAN)");
+    }
+    database = new H2Database();
+    database.setConnection(new JdbcConnection(connection));
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    connection.close();
+  }
+
+  @Test
+  public void testTypedColumnKeepsDeclaredType() throws IOException, DatabaseException,
+      SQLException {
+    LoadDataChange change = createChange("id,amount,code,active\n1,2.50,007,true\n");
+    LoadDataColumnConfig codeColumn = new LoadDataColumnConfig();
+    codeColumn.setName("code");
+    codeColumn.setType("STRING");
+    change.addColumn(codeColumn);
+    RecordingStatementFactory factory =
+        new RecordingStatementFactory((JdbcConnection) database.getConnection());
+
+    new StreamingLoadDataStatement(change, database, 10).execute(factory);
+
+    Assert.assertEquals("setString", factory.setters.get(3));
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT code FROM loaded")) {
+      Assert.assertTrue(resultSet.next());
+      Assert.assertEquals("007", resultSet.getString(1));
+    }
+  }
+
+  @Test
+  public void testUntypedColumnsBoundByTableColumnType() throws IOException, DatabaseException,
+      SQLException {
+    LoadDataChange change =
+        createChange("id,amount,code,active\n1,2.50,007,true\n2,,x,false\n3,4,y,\n");
+    RecordingStatementFactory factory =
+        new RecordingStatementFactory((JdbcConnection) database.getConnection());
+
+    new StreamingLoadDataStatement(change, database, 2).execute(factory);
+
+    Assert.assertEquals("setBigDecimal", factory.setters.get(1));
+    Assert.assertEquals("setBigDecimal", factory.setters.get(2));
+    Assert.assertEquals("setString", factory.setters.get(3));
+    Assert.assertEquals("setNull", factory.setters.get(4));
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(
+            "SELECT id, amount, code, active FROM loaded ORDER BY id")) {
+      Assert.assertTrue(resultSet.next());
+      Assert.assertEquals(1, resultSet.getInt(1));
+      Assert.assertEquals(new BigDecimal("2.50"), resultSet.getBigDecimal(2));
+      Assert.assertEquals("007", resultSet.getString(3));
+      Assert.assertTrue(resultSet.getBoolean(4));
+      Assert.assertTrue(resultSet.next());
+      Assert.assertNull(resultSet.getBigDecimal(2));
+      Assert.assertTrue(resultSet.next());
+      Assert.assertNull(resultSet.getObject(4));
+      Assert.assertFalse(resultSet.next());
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.tests;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.everit.osgi.dev.testrunner.TestRunnerConstants;
+import org.everit.osgi.ecm.annotation.Component;
+import org.everit.osgi.ecm.annotation.ConfigurationPolicy;
+import org.everit.osgi.ecm.annotation.Service;
+import org.everit.osgi.ecm.annotation.ServiceRef;
+import org.everit.osgi.ecm.annotation.attribute.StringAttribute;
+import org.everit.osgi.ecm.annotation.attribute.StringAttributes;
+import org.everit.osgi.ecm.extender.ExtendComponent;
+import org.everit.persistence.liquibase.datasource.ecm.LiquibaseDataSourceConstants;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Test component that tests the migration of independent changelogs in parallel behind a gated
+ * DataSource.
+ */
+@ExtendComponent
+@Component(componentId = "ParallelMigrationTest",
+    configurationPolicy = ConfigurationPolicy.REQUIRE)
+@StringAttributes({
+    @StringAttribute(attributeId = TestRunnerConstants.SERVICE_PROPERTY_TEST_ID,
+        defaultValue = "ParallelMigrationTest"),
+    @StringAttribute(attributeId = TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE_TYPE,
+        defaultValue = "junit4") })
+@Service
+public class ParallelMigrationTest {
+
+  private static final String DATA_SOURCE_FILTER = "(" + Constants.SERVICE_PID
+      + "=org.everit.persistence.liquibase.datasource.ecm.LiquibaseDataSource"
+      + ".6b0e2f4a-3c1d-4e8a-9f57-2d8c1a7e4b90)";
+
+  private static final long STATE_TIMEOUT_MILLIS = 10000;
+
+  private final AtomicReference<DataSource> dataSource = new AtomicReference<DataSource>();
+
+  private int countRanChangeSets(final Connection connection, final String directory)
+      throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(
+        "select count(*) from databasechangelog where filename like ?")) {
+      statement.setString(1, "%/" + directory + "/changelog.xml");
+      try (ResultSet resultSet = statement.executeQuery()) {
+        resultSet.next();
+        return resultSet.getInt(1);
+      }
+    }
+  }
+
+  private int countRows(final Connection connection, final String tableName)
+      throws SQLException {
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("select count(*) from " + tableName)) {
+      resultSet.next();
+      return resultSet.getInt(1);
+    }
+  }
+
+  private String getMigrationState() {
+    BundleContext bundleContext = FrameworkUtil.getBundle(getClass()).getBundleContext();
+    ServiceReference<?>[] serviceReferences;
+    try {
+      serviceReferences =
+          bundleContext.getServiceReferences(DataSource.class.getName(), DATA_SOURCE_FILTER);
+    } catch (InvalidSyntaxException e) {
+      throw new RuntimeException(e);
+    }
+    Assert.assertNotNull(serviceReferences);
+    return (String) serviceReferences[0]
+        .getProperty(LiquibaseDataSourceConstants.SERVICE_PROP_MIGRATION_STATE);
+  }
+
+  @ServiceRef
+  public void setDataSource(final DataSource dataSource) {
+    this.dataSource.set(dataSource);
+  }
+
+  @Test
+  public void testChangeLogsAppliedInParallel() {
+    try (Connection connection = dataSource.get().getConnection();
+        Statement statement = connection.createStatement()) {
+      statement.execute("select * from parallel_a");
+      statement.execute("select * from parallel_b");
+      Assert.assertEquals(2, countRanChangeSets(connection, "parallel/a"));
+      Assert.assertEquals(3, countRanChangeSets(connection, "parallel/b"));
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testMigrationStatePublished() throws InterruptedException {
+    // The gated DataSource hands out the connection when the migration finished
+    try (Connection connection = dataSource.get().getConnection()) {
+      Assert.assertEquals(2, countRanChangeSets(connection, "parallel/a"));
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+
+    long deadline = System.currentTimeMillis() + STATE_TIMEOUT_MILLIS;
+    String migrationState = getMigrationState();
+    while (!LiquibaseDataSourceConstants.MigrationState.COMPLETED.equals(migrationState)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+      migrationState = getMigrationState();
+    }
+    Assert.assertEquals(LiquibaseDataSourceConstants.MigrationState.COMPLETED, migrationState);
+  }
+
+  @Test
+  public void testRunAlwaysChangeSetPreventsFingerprint() {
+    try (Connection connection = dataSource.get().getConnection()) {
+      Assert.assertEquals(1, countRows(connection, "parallel_b_run"));
+      // The fingerprint would let the next migration skip the changeSet that runs always
+      try (ResultSet tables = connection.getMetaData().getTables(null, null,
+          "PARALLELFINGERPRINT", null)) {
+        Assert.assertTrue(tables.next());
+      }
+      Assert.assertEquals(0, countRows(connection, "PARALLELFINGERPRINT"));
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testStatementOrderKeptByBatching() {
+    try (Connection connection = dataSource.get().getConnection();
+        Statement statement = connection.createStatement();
+        ResultSet resultSet =
+            statement.executeQuery("select id, name from parallel_a order by id")) {
+      String[] expectedNames =
+          new String[] { "updated", "inserted again", "updated", "inserted again" };
+      for (int i = 0; i < expectedNames.length; i++) {
+        Assert.assertTrue(resultSet.next());
+        Assert.assertEquals(i + 1, resultSet.getInt(1));
+        Assert.assertEquals(expectedNames[i], resultSet.getString(2));
+      }
+      Assert.assertFalse(resultSet.next());
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
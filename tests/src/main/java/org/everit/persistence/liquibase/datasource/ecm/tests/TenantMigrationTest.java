@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.datasource.ecm.tests;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.everit.osgi.dev.testrunner.TestRunnerConstants;
+import org.everit.osgi.ecm.annotation.Component;
+import org.everit.osgi.ecm.annotation.ConfigurationPolicy;
+import org.everit.osgi.ecm.annotation.Service;
+import org.everit.osgi.ecm.annotation.ServiceRef;
+import org.everit.osgi.ecm.annotation.attribute.StringAttribute;
+import org.everit.osgi.ecm.annotation.attribute.StringAttributes;
+import org.everit.osgi.ecm.extender.ExtendComponent;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test component that tests the migration of the tenant schemas in parallel.
+ */
+@ExtendComponent
+@Component(componentId = "TenantMigrationTest",
+    configurationPolicy = ConfigurationPolicy.REQUIRE)
+@StringAttributes({
+    @StringAttribute(attributeId = TestRunnerConstants.SERVICE_PROPERTY_TEST_ID,
+        defaultValue = "TenantMigrationTest"),
+    @StringAttribute(attributeId = TestRunnerConstants.SERVICE_PROPERTY_TESTRUNNER_ENGINE_TYPE,
+        defaultValue = "junit4") })
+@Service
+public class TenantMigrationTest {
+
+  private static final String[] TENANTS = new String[] { "TENANT_A", "TENANT_B" };
+
+  private final AtomicReference<DataSource> dataSource = new AtomicReference<DataSource>();
+
+  @ServiceRef
+  public void setDataSource(final DataSource dataSource) {
+    this.dataSource.set(dataSource);
+  }
+
+  private int queryInt(final Statement statement, final String sql) throws SQLException {
+    try (ResultSet resultSet = statement.executeQuery(sql)) {
+      Assert.assertTrue(resultSet.next());
+      return resultSet.getInt(1);
+    }
+  }
+
+  @Test
+  public void testChangeLogAppliedOnEveryTenant() {
+    try (Connection connection = dataSource.get().getConnection();
+        Statement statement = connection.createStatement()) {
+      for (String tenant : TENANTS) {
+        statement.execute("select * from " + tenant + ".person");
+        statement.execute("select * from " + tenant + ".state");
+        // Every tenant has its own changelog table with all the changeSets
+        try (ResultSet resultSet =
+            statement.executeQuery("select count(*) from " + tenant + ".databasechangelog")) {
+          resultSet.next();
+          Assert.assertEquals(3, resultSet.getInt(1));
+        }
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testFingerprintStoredForEveryTenant() {
+    try (Connection connection = dataSource.get().getConnection();
+        Statement statement = connection.createStatement()) {
+      for (String tenant : TENANTS) {
+        // The fingerprint lets the next migration skip the schema while the row count matches
+        Assert.assertEquals(1, queryInt(statement,
+            "select count(*) from " + tenant + ".tenantfingerprint"));
+        Assert.assertEquals(queryInt(statement, "select count(*) from " + tenant
+            + ".databasechangelog"), queryInt(statement, "select changelog_rows from " + tenant
+                + ".tenantfingerprint"));
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}